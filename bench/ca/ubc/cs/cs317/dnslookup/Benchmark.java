@@ -0,0 +1,122 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Minimal benchmark harness used by the classes in this directory. Each benchmark runs a number
+ * of warm-up iterations (to let the JIT compile the code being measured) followed by measured
+ * iterations, and reports the average time and heap allocation per operation.
+ *
+ * A benchmark may run on several threads, each performing every iteration at the same time as
+ * the others. Throughput is then reported for all threads together, while the time per operation
+ * is the time seen by a single thread.
+ *
+ * "make bench-all" runs every benchmark in this directory with its default arguments, and "make
+ * bench BENCH=<class> ARGS=<arguments>" runs a single one. A benchmark added here should also be
+ * added to BENCHMARKS in the Makefile. LoadGenerator is not a benchmark but a load test with its
+ * own parameters, so it is only run on its own.
+ */
+abstract class Benchmark {
+
+    static final int WARMUP_ITERATIONS = 5;
+    static final int MEASURED_ITERATIONS = 5;
+
+    /** Value written by benchmarks so the JIT cannot eliminate the code being measured. */
+    static volatile long sink;
+
+    private final String name;
+    private final long operationsPerIteration;
+    private final int threads;
+
+    Benchmark(String name, long operationsPerIteration) {
+        this(name, operationsPerIteration, 1);
+    }
+
+    Benchmark(String name, long operationsPerIteration, int threads) {
+        this.name = threads > 1 ? name + ", " + threads + " threads" : name;
+        this.operationsPerIteration = operationsPerIteration;
+        this.threads = threads;
+    }
+
+    /** Performs one iteration of the benchmark, consisting of operationsPerIteration operations.
+     * If the benchmark runs on several threads, this method is called concurrently by all of them.
+     *
+     * @throws Exception If the operation being measured fails.
+     */
+    abstract void iteration() throws Exception;
+
+    /** Runs the benchmark and prints the result on the standard output.
+     *
+     * @return Throughput of all threads together, in operations per second.
+     * @throws Exception If the operation being measured fails.
+     */
+    double run() throws Exception {
+        if (threads == 1) {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                iteration();
+
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++)
+                iteration();
+            return report(System.nanoTime() - start, allocatedBytes() - bytesBefore);
+        }
+
+        // Every thread waits for the others before and after the measured iterations, so the
+        // elapsed time covers the iterations of all threads
+        CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        LongAdder bytes = new LongAdder();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(Thread.ofPlatform().name("benchmark-" + t).start(() -> {
+                try {
+                    for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                        iteration();
+                    barrier.await();
+                    long bytesBefore = allocatedBytes();
+                    for (int i = 0; i < MEASURED_ITERATIONS; i++)
+                        iteration();
+                    bytes.add(allocatedBytes() - bytesBefore);
+                    barrier.await();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                    barrier.reset();
+                }
+            }));
+        }
+        long elapsed = 0;
+        try {
+            barrier.await();
+            long start = System.nanoTime();
+            barrier.await();
+            elapsed = System.nanoTime() - start;
+        } catch (BrokenBarrierException e) {
+            // A worker failed: its exception is thrown below
+        }
+        for (Thread worker : workers)
+            worker.join();
+        if (failure.get() != null)
+            throw failure.get();
+        return report(elapsed, bytes.sum() / threads);
+    }
+
+    private double report(long elapsed, long bytesPerThread) {
+        long operations = operationsPerIteration * MEASURED_ITERATIONS;
+        double throughput = operations * threads * 1e9 / elapsed;
+        System.out.printf("%-45s %12.1f ns/op %14.0f ops/s %10.1f B/op\n", name,
+                (double) elapsed / operations, throughput, (double) bytesPerThread / operations);
+        return throughput;
+    }
+
+    static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,104 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Measures DNSCache.getCachedResults and DNSCache.addResult, alone and mixed (one write for
+ * every nine reads), for caches of several sizes accessed by several threads. Nodes are picked
+ * uniformly at random, and writes replace a record that is already cached. Also measures
+ * DNSCache.getClosestNameServers for names two labels below a zone with cached name servers.
+ *
+ * Usage: java CacheBenchmark [sizes] [threadCounts]
+ * where both arguments are comma-separated lists (by default 10000,100000,1000000 and 1,4).
+ */
+public class CacheBenchmark {
+
+    private static final int OPERATIONS = 1 << 20;
+    private static final int ZONES = 100;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = parseList(args.length > 0 ? args[0] : "10000,100000,1000000");
+        int[] threadCounts = parseList(args.length > 1 ? args[1] : "1,4");
+
+        DNSCache cache = DNSCache.getInstance();
+        for (int size : sizes) {
+            // The cache is a singleton, so it is emptied before being filled to the next size
+            cache.setMaximumSize(1);
+            cache.setMaximumSize(size + 2 * ZONES);
+            DNSNode[] nodes = new DNSNode[size];
+            ResourceRecord[] records = new ResourceRecord[size];
+            String[] subdomains = new String[size];
+            for (int i = 0; i < size; i++) {
+                String hostName = "host" + i + ".example" + (i % ZONES) + ".com";
+                byte[] address = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+                records[i] = new ResourceRecord(hostName, RecordType.A, 3600, InetAddress.getByAddress(hostName, address));
+                nodes[i] = records[i].getNode();
+                cache.addResult(records[i]);
+                subdomains[i] = "www." + hostName;
+            }
+            for (int i = 0; i < ZONES; i++) {
+                String nameServer = "ns.example" + i + ".com";
+                cache.addResult(new ResourceRecord("example" + i + ".com", RecordType.NS, 3600, nameServer));
+                cache.addResult(new ResourceRecord(nameServer, RecordType.A, 3600,
+                        InetAddress.getByAddress(nameServer, new byte[]{10, 0, 0, (byte) i})));
+            }
+
+            for (int threads : threadCounts) {
+                new Benchmark("getCachedResults (" + size + " nodes)", OPERATIONS, threads) {
+                    @Override
+                    void iteration() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long total = 0;
+                        for (int i = 0; i < OPERATIONS; i++)
+                            total += cache.getCachedResults(nodes[random.nextInt(size)]).size();
+                        sink = total;
+                    }
+                }.run();
+
+                new Benchmark("addResult (" + size + " nodes)", OPERATIONS / 4, threads) {
+                    @Override
+                    void iteration() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < OPERATIONS / 4; i++)
+                            cache.addResult(records[random.nextInt(size)]);
+                    }
+                }.run();
+
+                new Benchmark("90% reads, 10% writes (" + size + " nodes)", OPERATIONS, threads) {
+                    @Override
+                    void iteration() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long total = 0;
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            int index = random.nextInt(size);
+                            if (i % 10 == 0)
+                                cache.addResult(records[index]);
+                            else
+                                total += cache.getCachedResults(nodes[index]).size();
+                        }
+                        sink = total;
+                    }
+                }.run();
+
+                new Benchmark("getClosestNameServers (" + size + " nodes)", OPERATIONS / 4, threads) {
+                    @Override
+                    void iteration() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long total = 0;
+                        for (int i = 0; i < OPERATIONS / 4; i++)
+                            total += cache.getClosestNameServers(subdomains[random.nextInt(size)]).size();
+                        sink = total;
+                    }
+                }.run();
+            }
+        }
+    }
+
+    static int[] parseList(String list) {
+        String[] values = list.split(",");
+        int[] parsed = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            parsed[i] = Integer.parseInt(values[i].trim());
+        return parsed;
+    }
+}
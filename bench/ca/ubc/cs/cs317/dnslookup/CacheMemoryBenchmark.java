@@ -0,0 +1,62 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+
+/** Measures the heap used by the cache per record and per node, for a cache holding about one
+ * million records: an A record for every host name, plus an AAAA record and a CNAME record
+ * (pointing to one of 1000 shared targets) for every tenth host name. Records are created the
+ * way DNSResponse creates them, and only the cache keeps references to them.
+ *
+ * Usage: java CacheMemoryBenchmark [hostNames]
+ */
+public class CacheMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int hostNames = args.length > 0 ? Integer.parseInt(args[0]) : 830000;
+
+        DNSCache cache = DNSCache.getInstance();
+        cache.setMaximumSize(hostNames * 2);
+        long before = usedHeap();
+
+        int records = 0;
+        for (int i = 0; i < hostNames; i++) {
+            String hostName = "host" + i + ".example" + (i % 1000) + ".com";
+            byte[] address = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            cache.addResult(new ResourceRecord(hostName, RecordType.A, 3600, InetAddress.getByAddress(hostName, address)));
+            records++;
+            if (i % 10 == 0) {
+                byte[] address6 = new byte[16];
+                address6[0] = 0x20;
+                address6[1] = 0x01;
+                address6[12] = (byte) (i >> 24);
+                address6[13] = (byte) (i >> 16);
+                address6[14] = (byte) (i >> 8);
+                address6[15] = (byte) i;
+                cache.addResult(new ResourceRecord(hostName, RecordType.AAAA, 3600, InetAddress.getByAddress(hostName, address6)));
+                cache.addResult(new ResourceRecord("www" + i + ".example" + (i % 1000) + ".com", RecordType.CNAME, 3600,
+                        "cdn" + (i % 1000) + ".example.net"));
+                records += 2;
+            }
+        }
+
+        long after = usedHeap();
+        long nodes = cache.getStats().getSize();
+        System.out.printf("%d records in %d nodes: %.1f MB, %.1f bytes/record, %.1f bytes/node\n", records, nodes,
+                (after - before) / 1e6, (double) (after - before) / records, (double) (after - before) / nodes);
+        System.exit(0);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        // Collections triggered this way are not guaranteed to be complete, so keep the lowest
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,86 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/** Stress test of concurrent reads of DNSCache: measures the throughput of getCachedResults as
+ * the number of reading threads grows, and reports it relative to a single thread. Reads should
+ * scale with the number of cores, since they do not lock the cache. A background thread keeps
+ * replacing records of the nodes being read, at a fixed rate so that it takes the same share of
+ * the processors whatever the number of readers, and every read checks that it still finds the
+ * records of its node, so the test also fails if a reader ever observes a node that is being
+ * updated as missing.
+ *
+ * Usage: java CacheScalingBenchmark [size] [threadCounts]
+ * where threadCounts is a comma-separated list (by default powers of two up to twice the number
+ * of available processors).
+ */
+public class CacheScalingBenchmark {
+
+    private static final int OPERATIONS = 1 << 20;
+    private static final long WRITE_INTERVAL_NANOS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int[] threadCounts = args.length > 1 ? CacheBenchmark.parseList(args[1]) : defaultThreadCounts();
+
+        DNSCache cache = DNSCache.getInstance();
+        cache.setMaximumSize(2 * size);
+        DNSNode[] nodes = new DNSNode[size];
+        ResourceRecord[] records = new ResourceRecord[size];
+        for (int i = 0; i < size; i++) {
+            String hostName = "host" + i + ".example" + (i % 100) + ".com";
+            byte[] address = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            records[i] = new ResourceRecord(hostName, RecordType.A, 3600, InetAddress.getByAddress(hostName, address));
+            nodes[i] = records[i].getNode();
+            cache.addResult(records[i]);
+        }
+
+        Thread writer = Thread.ofPlatform().daemon().name("benchmark-writer").start(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!Thread.currentThread().isInterrupted()) {
+                int i = random.nextInt(size);
+                cache.addResult(new ResourceRecord(records[i].getHostName(), RecordType.A, 3600,
+                        records[i].getInetResult()));
+                LockSupport.parkNanos(WRITE_INTERVAL_NANOS);
+            }
+        });
+
+        System.out.printf("%d available processors, one writer thread (one write every %d us)\n",
+                Runtime.getRuntime().availableProcessors(), WRITE_INTERVAL_NANOS / 1000);
+        double single = 0;
+        for (int threads : threadCounts) {
+            double throughput = new Benchmark("getCachedResults (" + size + " nodes)", OPERATIONS, threads) {
+                @Override
+                void iteration() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long total = 0;
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        DNSNode node = nodes[random.nextInt(size)];
+                        int results = cache.getCachedResults(node).size();
+                        if (results == 0)
+                            throw new IllegalStateException("No results for " + node);
+                        total += results;
+                    }
+                    sink = total;
+                }
+            }.run();
+            if (single == 0)
+                single = throughput;
+            System.out.printf("%61.2fx speedup\n", throughput / single);
+        }
+        writer.interrupt();
+    }
+
+    private static int[] defaultThreadCounts() {
+        int max = 2 * Runtime.getRuntime().availableProcessors();
+        int count = 0;
+        for (int threads = 1; threads <= max; threads *= 2)
+            count++;
+        int[] threadCounts = new int[count];
+        for (int i = 0, threads = 1; i < count; i++, threads *= 2)
+            threadCounts[i] = threads;
+        return threadCounts;
+    }
+}
@@ -0,0 +1,74 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/** Measures the cost of encoding messages: queries sent to name servers (see sendToDNS), for
+ * nodes whose template is cached and for nodes seen for the first time, and responses sent by
+ * the server mode.
+ */
+public class EncoderBenchmark {
+
+    private static final int OPERATIONS = 1000000;
+    private static final int CACHED_NODES = 1000;
+    private static final int UNCACHED_NODES = 50000;
+
+    public static void main(String[] args) throws Exception {
+        QueryEncoder encoder = new QueryEncoder();
+
+        DNSNode[] cached = nodes("www", CACHED_NODES);
+        new Benchmark("QueryEncoder, cached template", OPERATIONS) {
+            @Override
+            void iteration() {
+                long total = 0;
+                for (int i = 0; i < OPERATIONS; i++)
+                    total += encoder.encode(cached[i % cached.length], i).remaining();
+                sink = total;
+            }
+        }.run();
+
+        // More distinct nodes than the encoder keeps templates for, so every template is rebuilt
+        DNSNode[] uncached = nodes("host", UNCACHED_NODES);
+        new Benchmark("QueryEncoder, new node", OPERATIONS / 10) {
+            @Override
+            void iteration() {
+                long total = 0;
+                for (int i = 0; i < OPERATIONS / 10; i++)
+                    total += encoder.encode(uncached[i % uncached.length], i).remaining();
+                sink = total;
+            }
+        }.run();
+
+        DNSNode question = new DNSNode("www.example.com", RecordType.A);
+        List<ResourceRecord> answers = new ArrayList<>();
+        for (int i = 1; i <= 4; i++)
+            answers.add(new ResourceRecord("www.example.com", RecordType.A, 300,
+                    InetAddress.getByAddress("www.example.com", new byte[]{10, 0, 0, (byte) i})));
+        Set<ResourceRecord> noAuthorities = Collections.emptySet();
+        ByteBuffer response = ByteBuffer.allocate(DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+        new Benchmark("ResponseEncoder, 4 A records", OPERATIONS) {
+            @Override
+            void iteration() {
+                long total = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    response.clear();
+                    ResponseEncoder.encode(response, i, 0x0100, ResponseEncoder.RCODE_NOERROR, question,
+                            answers, noAuthorities, DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+                    total += response.position();
+                }
+                sink = total;
+            }
+        }.run();
+    }
+
+    private static DNSNode[] nodes(String prefix, int count) {
+        DNSNode[] nodes = new DNSNode[count];
+        for (int i = 0; i < count; i++)
+            nodes[i] = new DNSNode(prefix + i + ".example" + (i % 100) + ".com", RecordType.A);
+        return nodes;
+    }
+}
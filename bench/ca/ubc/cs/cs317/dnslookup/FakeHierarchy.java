@@ -0,0 +1,119 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Hierarchy of fake authoritative name servers on loopback addresses: a root server, one server
+ * per top-level domain, and a number of servers sharing the zones under those domains. The root
+ * server delegates each top-level domain "tldN" to its server, which delegates each zone
+ * "zoneK.tldN" to one of the zone servers. Each zone holds the A records of hosts
+ * "hostJ.zoneK.tldN" and an SOA record, so names outside of it are answered with NXDOMAIN.
+ *
+ * All servers listen on the same port (the resolver sends every query to a single port), each
+ * on its own loopback address.
+ */
+class FakeHierarchy implements Closeable {
+
+    private static final int MAX_TLDS = 250;
+    private static final int ZONE_SERVERS = 8;
+
+    private final FakeNameServer root;
+    private final List<FakeNameServer> zoneServers = new ArrayList<>();
+    private final List<FakeNameServer> servers = new ArrayList<>();
+    private final String[] hostNames;
+
+    /** Starts the servers of a hierarchy.
+     *
+     * @param port           Port all servers listen on.
+     * @param tlds           Number of top-level domains, at most 250.
+     * @param zonesPerTld    Number of zones under each top-level domain.
+     * @param hostsPerZone   Number of hosts in each zone.
+     * @param hostTtl        TTL of host records, in seconds.
+     * @param delegationTtl  TTL of NS records and glue, in seconds.
+     * @throws IOException If a server could not be started.
+     */
+    FakeHierarchy(int port, int tlds, int zonesPerTld, int hostsPerZone, int hostTtl, int delegationTtl)
+            throws IOException {
+        if (tlds <= 0 || tlds > MAX_TLDS)
+            throw new IllegalArgumentException("Invalid number of top-level domains: " + tlds);
+        root = start("127.1.0.1", port);
+        for (int i = 0; i < Math.min(tlds * zonesPerTld, ZONE_SERVERS); i++)
+            zoneServers.add(start(zoneServerAddress(i), port));
+
+        hostNames = new String[tlds * zonesPerTld * hostsPerZone];
+        int host = 0;
+        int zoneIndex = 0;
+        for (int t = 0; t < tlds; t++) {
+            String tld = "tld" + t;
+            String tldAddress = "127.1.1." + (t + 1);
+            FakeNameServer tldServer = start(tldAddress, port);
+            root.addDelegation(tld, "ns." + tld, tldAddress, delegationTtl);
+
+            for (int z = 0; z < zonesPerTld; z++, zoneIndex++) {
+                String zone = "zone" + z + "." + tld;
+                int server = zoneIndex % zoneServers.size();
+                FakeNameServer zoneServer = zoneServers.get(server);
+                tldServer.addDelegation(zone, "ns." + zone, zoneServerAddress(server), delegationTtl);
+                zoneServer.addSoa(zone, hostTtl, hostTtl);
+                for (int h = 0; h < hostsPerZone; h++) {
+                    hostNames[host] = "host" + h + "." + zone;
+                    zoneServer.addAddress(hostNames[host], "10." + (host >> 16 & 0xFF) + "."
+                            + (host >> 8 & 0xFF) + "." + (host & 0xFF), hostTtl);
+                    host++;
+                }
+            }
+        }
+    }
+
+    private FakeNameServer start(String address, int port) throws IOException {
+        FakeNameServer server = new FakeNameServer(address, port);
+        servers.add(server);
+        return server;
+    }
+
+    private static String zoneServerAddress(int index) {
+        return "127.1.2." + (index + 1);
+    }
+
+    InetAddress getRootAddress() {
+        return root.getAddress();
+    }
+
+    /** Names of all hosts in the hierarchy, in order of top-level domain, zone and host.
+     */
+    String[] getHostNames() {
+        return hostNames;
+    }
+
+    /** Sets the time every server waits before answering a query.
+     */
+    void setLatency(long latencyMillis) {
+        for (FakeNameServer server : servers)
+            server.setLatency(latencyMillis);
+    }
+
+    /** Sets the fraction of queries every server drops without answering.
+     */
+    void setLossRate(double lossRate) {
+        for (FakeNameServer server : servers)
+            server.setLossRate(lossRate);
+    }
+
+    /** Number of queries received by all servers, over UDP and TCP.
+     */
+    long getQueryCount() {
+        long total = 0;
+        for (FakeNameServer server : servers)
+            total += server.getQueryCount() + server.getTcpQueryCount();
+        return total;
+    }
+
+    @Override
+    public void close() {
+        for (FakeNameServer server : servers)
+            server.close();
+    }
+}
@@ -0,0 +1,361 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** In-process authoritative name server listening on a loopback address, used to benchmark the
+ * resolver without live DNS servers. The server answers authoritatively for the records added to
+ * it, refers queries for names under a delegated zone to that zone's name servers (with glue),
+ * and answers NXDOMAIN (or NODATA, if the name has records of other types) for anything else.
+ * Negative answers include the SOA record of the enclosing zone, if one was added. Latency and
+ * packet loss can be configured to simulate slow or unreliable servers.
+ *
+ * UDP responses are limited to 512 bytes, or to the payload size advertised by the client with
+ * EDNS0 (up to 4096 bytes); larger responses are truncated, with the TC bit set. The server also
+ * answers queries over TCP on the same address and port, any number per connection.
+ */
+class FakeNameServer implements Closeable {
+
+    private static final int MAX_MESSAGE_LENGTH = 512;
+    private static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+    private static final int MAX_TCP_MESSAGE_LENGTH = 65535;
+
+    private final DatagramSocket socket;
+    private final ServerSocket tcpSocket;
+    private final Thread receiver;
+    private final ScheduledExecutorService delayedReplies;
+
+    private final Map<String, List<Record>> records = new ConcurrentHashMap<>();
+    private final Map<String, List<Record>> delegations = new ConcurrentHashMap<>();
+
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder tcpQueryCount = new LongAdder();
+    private final LongAdder tcpConnectionCount = new LongAdder();
+
+    private volatile long latencyMillis = 0;
+    private volatile double lossRate = 0;
+
+    FakeNameServer(String address, int port) throws IOException {
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(address), port));
+        this.delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-ns-reply-" + address);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.receiver = new Thread(this::receive, "fake-ns-" + address);
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+
+        this.tcpSocket = new ServerSocket();
+        this.tcpSocket.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+        Thread acceptor = new Thread(this::accept, "fake-ns-tcp-" + address);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    long getTcpQueryCount() {
+        return tcpQueryCount.sum();
+    }
+
+    long getTcpConnectionCount() {
+        return tcpConnectionCount.sum();
+    }
+
+    void addAddress(String name, String address, int ttl) throws IOException {
+        add(records, name, RecordType.A, ttl, InetAddress.getByName(address).getAddress());
+    }
+
+    void addCName(String name, String target, int ttl) {
+        add(records, name, RecordType.CNAME, ttl, encodeName(target));
+    }
+
+    /** Adds the SOA record of a zone this server is authoritative for, used in negative answers.
+     */
+    void addSoa(String zone, int ttl, int minimum) {
+        ByteBuffer data = ByteBuffer.allocate(512);
+        data.put(encodeName("ns." + zone));
+        data.put(encodeName("hostmaster." + zone));
+        data.putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(minimum);
+        byte[] encoded = new byte[data.position()];
+        data.flip();
+        data.get(encoded);
+        add(records, zone, RecordType.SOA, ttl, encoded);
+    }
+
+    /** Delegates a zone to a name server. Queries for names in (or under) the zone are answered
+     * with a referral to the name server, including its address as glue.
+     */
+    void addDelegation(String zone, String nameServer, String nameServerAddress, int ttl) throws IOException {
+        add(delegations, zone, RecordType.NS, ttl, encodeName(nameServer));
+        add(delegations, nameServer, RecordType.A, ttl, InetAddress.getByName(nameServerAddress).getAddress());
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        delayedReplies.shutdownNow();
+    }
+
+    private static void add(Map<String, List<Record>> map, String name, RecordType type, int ttl, byte[] data) {
+        map.computeIfAbsent(key(name, type), k -> new ArrayList<>()).add(new Record(name, type, ttl, data));
+    }
+
+    private static String key(String name, RecordType type) {
+        return name.toLowerCase(Locale.ROOT) + "/" + type.getCode();
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_TCP_MESSAGE_LENGTH];
+        DNSMessageReader reader = new DNSMessageReader();
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queryCount.increment();
+                if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate)
+                    continue;
+
+                byte[] response = answer(reader, ByteBuffer.wrap(buffer, 0, packet.getLength()), false);
+                SocketAddress client = packet.getSocketAddress();
+                if (latencyMillis > 0)
+                    delayedReplies.schedule(() -> send(response, client), latencyMillis, TimeUnit.MILLISECONDS);
+                else
+                    send(response, client);
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                // Malformed query, ignore
+            }
+        }
+    }
+
+    private void accept() {
+        while (!tcpSocket.isClosed()) {
+            try {
+                Socket connection = tcpSocket.accept();
+                tcpConnectionCount.increment();
+                Thread.ofVirtual().start(() -> serveTcp(connection));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serveTcp(Socket connection) {
+        byte[] buffer = new byte[MAX_TCP_MESSAGE_LENGTH];
+        DNSMessageReader reader = new DNSMessageReader();
+        try (connection) {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                int length = in.readUnsignedShort();
+                in.readFully(buffer, 0, length);
+                tcpQueryCount.increment();
+                if (latencyMillis > 0)
+                    Thread.sleep(latencyMillis);
+                byte[] response = answer(reader, ByteBuffer.wrap(buffer, 0, length), true);
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed by the client
+        }
+    }
+
+    private void send(byte[] response, SocketAddress client) {
+        try {
+            socket.send(new DatagramPacket(response, response.length, client));
+        } catch (IOException e) {
+            // Socket closed
+        }
+    }
+
+    private byte[] answer(DNSMessageReader reader, ByteBuffer query, boolean tcp) throws IOException {
+        reader.reset(query);
+        if (!reader.next())
+            throw new IOException("No question");
+        String name = reader.getName(reader.getNameOffset());
+        int type = reader.getType();
+        int questionEnd = reader.getRDataOffset();
+        int maxLength = tcp ? MAX_TCP_MESSAGE_LENGTH : MAX_MESSAGE_LENGTH;
+        while (!tcp && reader.next()) {
+            if (reader.getType() == DNSMessageReader.TYPE_OPT)
+                maxLength = Math.min(Math.max(reader.getRecordClass(), MAX_MESSAGE_LENGTH), MAX_EDNS_PAYLOAD_SIZE);
+        }
+
+        List<Record> answers = records.get(name.toLowerCase(Locale.ROOT) + "/" + type);
+        if (answers == null)
+            answers = records.get(key(name, RecordType.CNAME));
+        List<Record> authority = List.of();
+        List<Record> additional = new ArrayList<>();
+        boolean authoritative = true;
+        int rcode = 0;
+
+        if (answers == null) {
+            answers = List.of();
+            String zone = findDelegation(name);
+            if (zone != null) {
+                authoritative = false;
+                authority = delegations.get(key(zone, RecordType.NS));
+                for (Record ns : authority) {
+                    List<Record> glue = delegations.get(key(decodeName(ns.data), RecordType.A));
+                    if (glue != null)
+                        additional.addAll(glue);
+                }
+            } else {
+                if (!hasAnyRecord(name))
+                    rcode = 3;
+                authority = findSoa(name);
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(MAX_TCP_MESSAGE_LENGTH);
+        out.put(query.array(), query.arrayOffset(), questionEnd);
+        out.putShort(2, (short) (0x8000 | (authoritative ? 0x0400 : 0) | (query.get(2) & 0x01) << 8 | rcode));
+        out.putShort(4, (short) 1);
+        out.putShort(6, (short) answers.size());
+        out.putShort(8, (short) authority.size());
+        out.putShort(10, (short) additional.size());
+        for (List<Record> section : List.of(answers, authority, additional)) {
+            for (Record record : section) {
+                out.put(encodeName(record.name));
+                out.putShort((short) record.type.getCode());
+                out.putShort((short) 1);
+                out.putInt(record.ttl);
+                out.putShort((short) record.data.length);
+                out.put(record.data);
+            }
+        }
+        if (out.position() > maxLength) {
+            // Truncated: keep the question only, and set TC
+            out.position(questionEnd);
+            out.putShort(2, (short) (out.getShort(2) | 0x0200));
+            out.putShort(6, (short) 0);
+            out.putShort(8, (short) 0);
+            out.putShort(10, (short) 0);
+        }
+        byte[] response = new byte[out.position()];
+        out.flip();
+        out.get(response);
+        return response;
+    }
+
+    private String findDelegation(String name) {
+        String candidate = name.toLowerCase(Locale.ROOT);
+        while (true) {
+            if (delegations.containsKey(key(candidate, RecordType.NS)))
+                return candidate;
+            int dot = candidate.indexOf('.');
+            if (dot < 0)
+                return delegations.containsKey(key("", RecordType.NS)) ? "" : null;
+            candidate = candidate.substring(dot + 1);
+        }
+    }
+
+    private List<Record> findSoa(String name) {
+        String candidate = name.toLowerCase(Locale.ROOT);
+        while (true) {
+            List<Record> soa = records.get(key(candidate, RecordType.SOA));
+            if (soa != null)
+                return soa;
+            int dot = candidate.indexOf('.');
+            if (dot < 0)
+                return List.of();
+            candidate = candidate.substring(dot + 1);
+        }
+    }
+
+    private boolean hasAnyRecord(String name) {
+        String prefix = name.toLowerCase(Locale.ROOT) + "/";
+        for (String key : records.keySet())
+            if (key.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    static byte[] encodeName(String name) {
+        ByteBuffer out = ByteBuffer.allocate(256);
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty())
+                continue;
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.put((byte) bytes.length);
+            out.put(bytes);
+        }
+        out.put((byte) 0);
+        byte[] encoded = new byte[out.position()];
+        out.flip();
+        out.get(encoded);
+        return encoded;
+    }
+
+    private static String decodeName(byte[] encoded) {
+        StringBuilder name = new StringBuilder();
+        int idx = 0;
+        while (encoded[idx] != 0) {
+            if (name.length() > 0)
+                name.append('.');
+            name.append(new String(encoded, idx + 1, encoded[idx], StandardCharsets.US_ASCII));
+            idx += encoded[idx] + 1;
+        }
+        return name.toString();
+    }
+
+    private static class Record {
+        final String name;
+        final RecordType type;
+        final int ttl;
+        final byte[] data;
+
+        Record(String name, RecordType type, int ttl, byte[] data) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+        }
+    }
+}
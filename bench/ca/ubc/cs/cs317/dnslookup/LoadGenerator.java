@@ -0,0 +1,120 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Drives the resolver with lookups for names drawn from a Zipf distribution, against a fake
+ * hierarchy of 10 top-level domains with 100 zones of 100 hosts each (see FakeHierarchy), and
+ * reports throughput, latency percentiles, upstream queries per lookup and the cache hit ratio.
+ * The popularity rank of each host is assigned at random, so popular hosts are spread over
+ * zones.
+ *
+ * Usage: java LoadGenerator [lookups] [concurrency] [zipfExponent] [latencyMillis] [lossRate] [ttl]
+ */
+public class LoadGenerator {
+
+    private static final int PORT = 5320;
+    private static final int TLDS = 10;
+    private static final int ZONES_PER_TLD = 100;
+    private static final int HOSTS_PER_ZONE = 100;
+    private static final int DELEGATION_TTL = 86400;
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 2;
+        double lossRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        int ttl = args.length > 5 ? Integer.parseInt(args[5]) : 300;
+
+        FakeHierarchy hierarchy = new FakeHierarchy(PORT, TLDS, ZONES_PER_TLD, HOSTS_PER_ZONE, ttl, DELEGATION_TTL);
+        hierarchy.setLatency(latency);
+        hierarchy.setLossRate(lossRate);
+        String[] hostNames = hierarchy.getHostNames().clone();
+        shuffle(hostNames, new Random(317));
+        double[] distribution = zipf(hostNames.length, exponent);
+
+        DNSLookupService.init(hierarchy.getRootAddress(), PORT);
+        DNSCache cache = DNSCache.getInstance();
+        CacheStats before = cache.getStats();
+        long queriesBefore = hierarchy.getQueryCount();
+
+        long[] latencies = new long[lookups];
+        LongAdder failures = new LongAdder();
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < lookups; i++) {
+                int index = i;
+                String hostName = hostNames[sample(distribution, ThreadLocalRandom.current().nextDouble())];
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        long lookupStart = System.nanoTime();
+                        if (DNSLookupService.resolve(new DNSNode(hostName, RecordType.A)).isEmpty())
+                            failures.increment();
+                        latencies[index] = System.nanoTime() - lookupStart;
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        CacheStats after = cache.getStats();
+        long hits = after.getHitCount() - before.getHitCount();
+        long misses = after.getMissCount() - before.getMissCount();
+        Arrays.sort(latencies);
+        System.out.printf("%d lookups of %d names (Zipf s=%.2f), concurrency %d, latency %d ms, loss %.1f%%, TTL %d s\n",
+                lookups, hostNames.length, exponent, concurrency, latency, lossRate * 100, ttl);
+        System.out.printf("throughput:      %10.0f lookups/s\n", lookups * 1e9 / elapsed);
+        System.out.printf("latency:         p50 %.3f ms   p99 %.3f ms   p999 %.3f ms   max %.3f ms\n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[lookups - 1] / 1e6);
+        System.out.printf("upstream:        %10.3f queries/lookup\n",
+                (double) (hierarchy.getQueryCount() - queriesBefore) / lookups);
+        System.out.printf("cache hit ratio: %10.3f\n", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        System.out.printf("failed lookups:  %10d\n", failures.sum());
+
+        hierarchy.close();
+        System.exit(0);
+    }
+
+    /** Cumulative distribution of a Zipf distribution over ranks 1 to n.
+     */
+    private static double[] zipf(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int rank = 1; rank <= n; rank++) {
+            total += 1 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = total;
+        }
+        for (int i = 0; i < n; i++)
+            cumulative[i] /= total;
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, double value) {
+        int index = Arrays.binarySearch(cumulative, value);
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * fraction))] / 1e6;
+    }
+
+    private static void shuffle(String[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
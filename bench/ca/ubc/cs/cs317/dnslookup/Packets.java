@@ -0,0 +1,123 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** Builds realistic DNS response messages for benchmarks, using name compression the same way
+ * real servers do.
+ */
+class Packets {
+
+    private static final String[] GTLD_SERVERS = {"a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l", "m"};
+
+    /** A referral from a root server for www.example.com: 13 NS records for com in the authority
+     * section, with A and AAAA glue for each of them in the additional section.
+     *
+     * @return The encoded message.
+     */
+    static byte[] rootReferral() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0x1234);
+        out.writeShort(0x8000);
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeShort(GTLD_SERVERS.length);
+        out.writeShort(GTLD_SERVERS.length * 2);
+
+        writeName(out, "www.example.com");
+        out.writeShort(RecordType.A.getCode());
+        out.writeShort(1);
+        int com = DNSMessageReader.HEADER_LENGTH + 12;
+
+        int[] serverOffsets = new int[GTLD_SERVERS.length];
+        int gtldServersNet = -1;
+        for (int i = 0; i < GTLD_SERVERS.length; i++) {
+            writePointer(out, com);
+            out.writeShort(RecordType.NS.getCode());
+            out.writeShort(1);
+            out.writeInt(172800);
+            serverOffsets[i] = bytes.size() + 2;
+            if (gtldServersNet < 0) {
+                out.writeShort(20);
+                writeName(out, GTLD_SERVERS[i] + ".gtld-servers.net");
+                gtldServersNet = serverOffsets[i] + 2;
+            } else {
+                out.writeShort(4);
+                out.writeByte(1);
+                out.writeBytes(GTLD_SERVERS[i]);
+                writePointer(out, gtldServersNet);
+            }
+        }
+        for (int i = 0; i < GTLD_SERVERS.length; i++) {
+            writePointer(out, serverOffsets[i]);
+            out.writeShort(RecordType.A.getCode());
+            out.writeShort(1);
+            out.writeInt(172800);
+            out.writeShort(4);
+            out.writeInt(0xC0050006 + (i << 8));
+        }
+        for (int i = 0; i < GTLD_SERVERS.length; i++) {
+            writePointer(out, serverOffsets[i]);
+            out.writeShort(RecordType.AAAA.getCode());
+            out.writeShort(1);
+            out.writeInt(172800);
+            out.writeShort(16);
+            out.writeLong(0x2001050300000000L + i);
+            out.writeLong(0x0000000000020030L);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** An authoritative answer for www.cs.ubc.ca, with a CNAME to another host and its address.
+     *
+     * @return The encoded message.
+     */
+    static byte[] cnameAnswer() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0x4321);
+        out.writeShort(0x8400);
+        out.writeShort(1);
+        out.writeShort(2);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        writeName(out, "www.cs.ubc.ca");
+        out.writeShort(RecordType.A.getCode());
+        out.writeShort(1);
+
+        writePointer(out, DNSMessageReader.HEADER_LENGTH);
+        out.writeShort(RecordType.CNAME.getCode());
+        out.writeShort(1);
+        out.writeInt(3600);
+        out.writeShort(6);
+        int target = bytes.size();
+        out.writeByte(3);
+        out.writeBytes("web");
+        writePointer(out, DNSMessageReader.HEADER_LENGTH + 4);
+
+        writePointer(out, target);
+        out.writeShort(RecordType.A.getCode());
+        out.writeShort(1);
+        out.writeInt(3600);
+        out.writeShort(4);
+        out.writeInt(0x8E670606);
+        return bytes.toByteArray();
+    }
+
+    static void writeName(DataOutputStream out, String name) throws IOException {
+        for (String label : name.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+        out.writeByte(0);
+    }
+
+    static void writePointer(DataOutputStream out, int offset) throws IOException {
+        out.writeShort(0xC000 | offset);
+    }
+}
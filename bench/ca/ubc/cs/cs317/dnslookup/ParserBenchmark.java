@@ -0,0 +1,50 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/** Measures the throughput of decoding DNS responses: a single pass of DNSMessageReader over
+ * every record (names left undecoded), and the construction of a complete DNSResponse.
+ */
+public class ParserBenchmark {
+
+    private static final int OPERATIONS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        run("root referral", Packets.rootReferral());
+        run("CNAME answer", Packets.cnameAnswer());
+    }
+
+    private static void run(String name, byte[] packet) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        DNSMessageReader reader = new DNSMessageReader();
+
+        new Benchmark("DNSMessageReader pass, " + name, OPERATIONS) {
+            @Override
+            void iteration() throws Exception {
+                long total = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    reader.reset(buffer);
+                    while (reader.next())
+                        total += reader.getType() + reader.getRDataLength();
+                }
+                sink = total;
+            }
+        }.run();
+
+        new Benchmark("DNSResponse, " + name, OPERATIONS / 10) {
+            @Override
+            void iteration() {
+                long total = 0;
+                try {
+                    for (int i = 0; i < OPERATIONS / 10; i++)
+                        total += new DNSResponse(packet).getAdditionals().size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                sink = total;
+            }
+        }.run();
+    }
+}
@@ -0,0 +1,65 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/** Compares lookup latency with and without racing name servers, against a fake hierarchy where
+ * the first name server listed for the zone is much slower than the others.
+ *
+ * Usage: java RaceBenchmark [lookups] [slowLatencyMillis]
+ */
+public class RaceBenchmark {
+
+    private static final int PORT = 5300;
+    private static final int CONCURRENCY = 50;
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long slowLatency = args.length > 1 ? Long.parseLong(args[1]) : 800;
+
+        FakeNameServer root = new FakeNameServer("127.0.0.1", PORT);
+        FakeNameServer[] zoneServers = {
+                new FakeNameServer("127.0.0.11", PORT),
+                new FakeNameServer("127.0.0.12", PORT),
+                new FakeNameServer("127.0.0.13", PORT),
+        };
+        zoneServers[0].setLatency(slowLatency);
+        zoneServers[1].setLatency(5);
+        zoneServers[2].setLatency(5);
+        for (int i = 0; i < zoneServers.length; i++) {
+            root.addDelegation("example.com", "ns" + (i + 1) + ".example.com", "127.0.0.1" + (i + 1), 86400);
+            for (int n = 0; n < lookups; n++) {
+                zoneServers[i].addAddress("off" + n + ".example.com", "10.0.0.1", 300);
+                zoneServers[i].addAddress("on" + n + ".example.com", "10.0.0.1", 300);
+            }
+        }
+
+        DNSLookupService.init(InetAddress.getByName("127.0.0.1"), PORT);
+        run("racing on", "on", lookups, true);
+        run("racing off", "off", lookups, false);
+    }
+
+    private static void run(String name, String prefix, int lookups, boolean racing) throws Exception {
+        DNSLookupService.setRacing(racing);
+        long[] latencies = new long[lookups];
+        Semaphore permits = new Semaphore(CONCURRENCY);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < lookups; i++) {
+                int index = i;
+                permits.acquire();
+                executor.execute(() -> {
+                    long start = System.nanoTime();
+                    DNSLookupService.resolve(new DNSNode(prefix + index + ".example.com", RecordType.A));
+                    latencies[index] = System.nanoTime() - start;
+                    permits.release();
+                });
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-12s p50 %7.1f ms   p99 %7.1f ms   max %7.1f ms\n", name,
+                latencies[lookups / 2] / 1e6, latencies[lookups * 99 / 100] / 1e6, latencies[lookups - 1] / 1e6);
+    }
+}
@@ -0,0 +1,99 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Measures complete lookups through DNSLookupService against an in-process hierarchy of fake
+ * name servers (a root server, a server for the top-level domains and a server for the zones
+ * under them) answering without delay. Lookups are measured with the answer already cached, and
+ * with the delegations of the zone, of the top-level domain or of none of them cached. Every
+ * lookup that is not answered from the cache is for a name never seen before.
+ *
+ * Usage: java ResolverBenchmark [threadCounts]
+ * where threadCounts is a comma-separated list (by default 1,4).
+ */
+public class ResolverBenchmark {
+
+    private static final int PORT = 5310;
+    private static final String ROOT_ADDRESS = "127.0.0.21";
+    private static final String TLD_ADDRESS = "127.0.0.22";
+    private static final String ZONE_ADDRESS = "127.0.0.23";
+    private static final int LOOKUPS = 1000;
+    private static final int ITERATIONS = Benchmark.WARMUP_ITERATIONS + Benchmark.MEASURED_ITERATIONS;
+    private static final int TTL = 86400;
+
+    public static void main(String[] args) throws Exception {
+        String[] threadList = (args.length > 0 ? args[0] : "1,4").split(",");
+        int[] threadCounts = new int[threadList.length];
+        int totalThreads = 0;
+        for (int i = 0; i < threadList.length; i++) {
+            threadCounts[i] = Integer.parseInt(threadList[i].trim());
+            totalThreads += threadCounts[i];
+        }
+        int names = LOOKUPS * ITERATIONS * totalThreads;
+
+        FakeNameServer root = new FakeNameServer(ROOT_ADDRESS, PORT);
+        FakeNameServer tld = new FakeNameServer(TLD_ADDRESS, PORT);
+        FakeNameServer zone = new FakeNameServer(ZONE_ADDRESS, PORT);
+        root.addDelegation("com", "a.gtld-servers.com", TLD_ADDRESS, TTL);
+        tld.addDelegation("example.com", "ns.example.com", ZONE_ADDRESS, TTL);
+        zone.addAddress("www.example.com", "10.0.0.1", TTL);
+        for (int i = 0; i < names; i++) {
+            zone.addAddress("host" + i + ".example.com", "10.0.0.1", TTL);
+            tld.addDelegation("zone" + i + ".com", "ns.zone" + i + ".com", ZONE_ADDRESS, TTL);
+            zone.addAddress("www.zone" + i + ".com", "10.0.0.1", TTL);
+            root.addDelegation("tld" + i, "ns.tld" + i, TLD_ADDRESS, TTL);
+            tld.addDelegation("zone.tld" + i, "ns.zone.tld" + i, ZONE_ADDRESS, TTL);
+            zone.addAddress("www.zone.tld" + i, "10.0.0.1", TTL);
+        }
+        FakeNameServer[] servers = {root, tld, zone};
+
+        DNSCache.getInstance().setMaximumSize(names * 8);
+        DNSLookupService.init(InetAddress.getByName(ROOT_ADDRESS), PORT);
+        DNSLookupService.resolve(new DNSNode("www.example.com", RecordType.A));
+
+        AtomicInteger hosts = new AtomicInteger();
+        AtomicInteger zones = new AtomicInteger();
+        AtomicInteger tlds = new AtomicInteger();
+        for (int threads : threadCounts) {
+            run(servers, "resolve, answer cached", threads, () -> "www.example.com");
+            run(servers, "resolve, zone delegation cached", threads,
+                    () -> "host" + hosts.getAndIncrement() + ".example.com");
+            run(servers, "resolve, TLD delegation cached", threads,
+                    () -> "www.zone" + zones.getAndIncrement() + ".com");
+            run(servers, "resolve, nothing cached", threads,
+                    () -> "www.zone.tld" + tlds.getAndIncrement());
+        }
+
+        for (FakeNameServer server : servers)
+            server.close();
+        System.exit(0);
+    }
+
+    private interface NameSource {
+        String next();
+    }
+
+    private static void run(FakeNameServer[] servers, String name, int threads, NameSource names) throws Exception {
+        long queriesBefore = queryCount(servers);
+        new Benchmark(name, LOOKUPS, threads) {
+            @Override
+            void iteration() {
+                long total = 0;
+                for (int i = 0; i < LOOKUPS; i++)
+                    total += DNSLookupService.resolve(new DNSNode(names.next(), RecordType.A)).size();
+                sink = total;
+            }
+        }.run();
+        double lookups = (double) LOOKUPS * ITERATIONS * threads;
+        System.out.printf("%-45s %12.2f upstream queries/lookup\n", "",
+                (queryCount(servers) - queriesBefore) / lookups);
+    }
+
+    private static long queryCount(FakeNameServer[] servers) {
+        long total = 0;
+        for (FakeNameServer server : servers)
+            total += server.getQueryCount();
+        return total;
+    }
+}
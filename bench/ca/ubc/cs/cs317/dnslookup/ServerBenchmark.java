@@ -0,0 +1,115 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/** Measures the cost of answering a query in server mode (see DNSServer), from the query
+ * message to the response message, when all answers are cached: once by looking up and encoding
+ * the records of each answer, and once with responses kept encoded in the response cache. Queries
+ * are sent with EDNS0, for names with four A records each. Also measures the rejection of queries
+ * whose question name has no host name form (a label holding a '.'), which must be answered with
+ * FORMERR without reaching the resolver.
+ *
+ * Usage: java ServerBenchmark [names]
+ */
+public class ServerBenchmark {
+
+    private static final int OPERATIONS = 1 << 20;
+    private static final int ADDRESSES = 4;
+
+    public static void main(String[] args) throws Exception {
+        int names = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        DNSCache cache = DNSCache.getInstance();
+        // Large enough for all names to stay in the protected segment of the eviction policy
+        cache.setMaximumSize(2 * names);
+        QueryEncoder encoder = new QueryEncoder();
+        byte[][] queries = new byte[names][];
+        for (int i = 0; i < names; i++) {
+            String hostName = "host" + i + ".example" + (i % 100) + ".com";
+            for (int j = 0; j < ADDRESSES; j++) {
+                byte[] address = {10, (byte) (i >> 8), (byte) i, (byte) j};
+                cache.addResult(new ResourceRecord(hostName, RecordType.A, 3600,
+                        InetAddress.getByAddress(hostName, address)));
+            }
+            ByteBuffer query = encoder.encode(new DNSNode(hostName, RecordType.A), i);
+            queries[i] = new byte[query.remaining()];
+            query.get(queries[i]);
+        }
+
+        try (DNSServer server = new DNSServer(0, 1, cache, cache::getCachedResults)) {
+            server.setResponseCacheSize(0);
+            run("answer, encoded from records", server, queries);
+
+            // Also large enough for all names to stay in the protected segment of its policy
+            server.setResponseCacheSize(2 * names);
+            run("answer, from response cache", server, queries);
+            ResponseCache responses = server.getResponseCache();
+            System.out.printf("%54.1f%% response cache hits\n",
+                    100.0 * responses.getHitCount() / (responses.getHitCount() + responses.getMissCount()));
+        }
+
+        try (DNSServer server = new DNSServer(0, 1, cache, node -> {
+            throw new IllegalStateException("Invalid question resolved: " + node);
+        })) {
+            runInvalid(server, invalidQuery());
+        }
+    }
+
+    /** Builds a query for "a.b.example.com" whose first label is "a.b", with an EDNS0 record. */
+    private static byte[] invalidQuery() {
+        ByteBuffer query = ByteBuffer.allocate(DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+        query.putShort((short) 1).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 1);
+        for (String label : new String[]{"a.b", "example", "com"})
+            query.put((byte) label.length()).put(label.getBytes());
+        query.put((byte) 0).putShort((short) RecordType.A.getCode()).putShort((short) 1);
+        query.put((byte) 0).putShort((short) DNSMessageReader.TYPE_OPT).putShort((short) 1232).putInt(0)
+                .putShort((short) 0);
+        byte[] bytes = new byte[query.position()];
+        query.flip().get(bytes);
+        return bytes;
+    }
+
+    private static void runInvalid(DNSServer server, byte[] invalid) throws Exception {
+        ByteBuffer query = ByteBuffer.allocate(DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+        DNSMessageReader reader = new DNSMessageReader();
+        new Benchmark("answer, invalid question name (FORMERR)", OPERATIONS) {
+            @Override
+            void iteration() {
+                long total = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    query.clear();
+                    query.put(invalid).flip();
+                    response.clear();
+                    server.answer(query, reader, response);
+                    if ((response.get(3) & 0x0F) != ResponseEncoder.RCODE_FORMERR)
+                        throw new IllegalStateException("Invalid question not rejected");
+                    total += response.position();
+                }
+                sink = total;
+            }
+        }.run();
+    }
+
+    private static void run(String name, DNSServer server, byte[][] queries) throws Exception {
+        ByteBuffer query = ByteBuffer.allocate(DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(DNSServer.MAX_EDNS_PAYLOAD_SIZE);
+        DNSMessageReader reader = new DNSMessageReader();
+        new Benchmark(name + " (" + queries.length + " names)", OPERATIONS) {
+            @Override
+            void iteration() {
+                long total = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    query.clear();
+                    query.put(queries[i % queries.length]).flip();
+                    response.clear();
+                    server.answer(query, reader, response);
+                    total += response.position();
+                }
+                sink = total;
+            }
+        }.run();
+    }
+}
@@ -0,0 +1,53 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Measures the time needed to write a cache snapshot and to restore it into an empty cache, for
+ * a cache holding a few million records (by default, two million A records and one CNAME record
+ * for every tenth host name).
+ *
+ * Usage: java SnapshotBenchmark [records]
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+        DNSCache cache = DNSCache.getInstance();
+        cache.setMaximumSize(records * 2);
+        for (int i = 0; i < records; i++) {
+            String hostName = "host" + i + ".example" + (i % 1000) + ".com";
+            byte[] address = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            cache.addResult(new ResourceRecord(hostName, RecordType.A, 3600, InetAddress.getByAddress(hostName, address)));
+            if (i % 10 == 0)
+                cache.addResult(new ResourceRecord("www" + i + ".example" + (i % 1000) + ".com", RecordType.CNAME, 3600, hostName));
+        }
+
+        Path file = Files.createTempFile("dns-cache", ".snapshot");
+        try {
+            long start = System.nanoTime();
+            int written = CacheSnapshot.write(cache, file);
+            long writeMillis = (System.nanoTime() - start) / 1000000;
+            long size = Files.size(file);
+            System.out.printf("write: %d records in %d ms (%d bytes, %.1f bytes/record)\n",
+                    written, writeMillis, size, (double) size / written);
+
+            // Caches are never collected (their expiry thread refers to them), so the same cache is
+            // emptied and reused for each load
+            for (int i = 0; i < 3; i++) {
+                cache.setMaximumSize(1);
+                cache.setMaximumSize(records * 2);
+                start = System.nanoTime();
+                int loaded = CacheSnapshot.load(cache, file);
+                long loadMillis = (System.nanoTime() - start) / 1000000;
+                System.out.printf("load:  %d records in %d ms (%.0f records/s)\n",
+                        loaded, loadMillis, loaded * 1000.0 / Math.max(loadMillis, 1));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.exit(0);
+    }
+}
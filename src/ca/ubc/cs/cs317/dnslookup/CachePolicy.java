@@ -0,0 +1,199 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Segmented LRU eviction policy used to bound the size of the DNS cache (and of the response
+ * cache of the server mode, see ResponseCache). New nodes enter a
+ * probation segment, and are only promoted to the protected segment once they are read again.
+ * Victims are always taken from the least recently used end of the probation segment first, so
+ * a scan of names that are looked up once cannot push out frequently used nodes (such as the
+ * NS and glue records of popular zones).
+ *
+ * Reads do not lock the policy. As in Caffeine, each read is appended to one of several small
+ * ring buffers (picked by thread, so that concurrent readers rarely share one), and buffered
+ * reads are applied to the segments later, with the policy locked: whenever a victim is
+ * requested (i.e., after every insertion), or by the reader that fills a buffer. A read is only
+ * dropped if its buffer is full, or if another reader claims the same slot at the same time;
+ * the recency of popular nodes is kept anyway by their other reads.
+ */
+class CachePolicy {
+
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int BUFFER_SIZE = 16;
+    private static final int MAX_BUFFERS = 64;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers;
+
+    private final LinkedHashMap<DNSNode, Boolean> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<DNSNode, Boolean> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private volatile int maximumSize;
+
+    CachePolicy(int maximumSize) {
+        setMaximumSize(maximumSize);
+        int buffers = 1;
+        while (buffers < Math.min(4 * Runtime.getRuntime().availableProcessors(), MAX_BUFFERS))
+            buffers <<= 1;
+        readBuffers = new ReadBuffer[buffers];
+        for (int i = 0; i < buffers; i++)
+            readBuffers[i] = new ReadBuffer();
+    }
+
+    void setMaximumSize(int maximumSize) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("Maximum cache size must be positive");
+        this.maximumSize = maximumSize;
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return probation.size() + protectedSegment.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a node was added to the cache. The node starts in the probation segment.
+     *
+     * @param node Node that was added to the cache.
+     */
+    void onInsert(DNSNode node) {
+        lock.lock();
+        try {
+            if (!protectedSegment.containsKey(node))
+                probation.put(node, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a cache hit for a node, without locking the policy. Once applied, the hit
+     * promotes a node in probation to the protected segment, demoting the least recently used
+     * protected node if that segment is full.
+     *
+     * @param node Node that was read from the cache.
+     */
+    void onAccess(DNSNode node) {
+        long threadId = Thread.currentThread().threadId();
+        ReadBuffer buffer = readBuffers[(int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & (readBuffers.length - 1)];
+        if (!buffer.offer(node) && lock.tryLock()) {
+            // The buffer is full: apply it now, unless another thread is already doing so
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Applies a hit, with the policy locked. */
+    private void applyAccess(DNSNode node) {
+        // Access-ordered: moves the node to the most recently used end without allocating
+        if (protectedSegment.get(node) != null)
+            return;
+        if (probation.remove(node) != null) {
+            protectedSegment.put(node, Boolean.TRUE);
+            int protectedCapacity = Math.max(1, (int) (maximumSize * PROTECTED_RATIO));
+            while (protectedSegment.size() > protectedCapacity) {
+                DNSNode demoted = removeEldest(protectedSegment);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        }
+    }
+
+    /** Applies the hits recorded in the read buffers, with the policy locked. Hits of nodes
+     * that were removed in the meantime have no effect.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            long head = buffer.readCount;
+            long tail = buffer.writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) head & (BUFFER_SIZE - 1);
+                DNSNode node = buffer.slots.get(index);
+                if (node == null)
+                    break; // Claimed by a reader that has not stored its node yet
+                buffer.slots.lazySet(index, null);
+                applyAccess(node);
+            }
+            buffer.readCount = head;
+        }
+    }
+
+    /** Records that a node was removed from the cache for reasons other than eviction (e.g.,
+     * all of its records expired).
+     *
+     * @param node Node that was removed from the cache.
+     */
+    void onRemove(DNSNode node) {
+        lock.lock();
+        try {
+            if (probation.remove(node) == null)
+                protectedSegment.remove(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Selects and forgets a node to be evicted if the policy holds more nodes than allowed.
+     *
+     * @return The node that should be evicted from the cache, or null if the cache is within its
+     * bound.
+     */
+    DNSNode nextVictim() {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            if (probation.size() + protectedSegment.size() <= maximumSize)
+                return null;
+            if (!probation.isEmpty())
+                return removeEldest(probation);
+            return removeEldest(protectedSegment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static DNSNode removeEldest(LinkedHashMap<DNSNode, Boolean> segment) {
+        Iterator<DNSNode> iterator = segment.keySet().iterator();
+        DNSNode eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    /** Ring buffer of nodes that were read, filled by readers without locking and emptied with
+     * the policy locked. A slot is claimed by incrementing writeCount, and holds null once its
+     * node was applied.
+     */
+    private static final class ReadBuffer {
+
+        final AtomicReferenceArray<DNSNode> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        final AtomicLong writeCount = new AtomicLong();
+        /** Only written with the policy locked. */
+        volatile long readCount;
+
+        /** Appends a node, unless the buffer is full or another reader claimed the same slot.
+         *
+         * @return false if the buffer is full.
+         */
+        boolean offer(DNSNode node) {
+            long head = readCount;
+            long tail = writeCount.get();
+            if (tail - head >= BUFFER_SIZE)
+                return false;
+            if (writeCount.compareAndSet(tail, tail + 1))
+                slots.lazySet((int) tail & (BUFFER_SIZE - 1), node);
+            return true;
+        }
+    }
+}
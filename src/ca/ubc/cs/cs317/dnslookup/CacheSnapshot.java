@@ -0,0 +1,223 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** Binary snapshot of the contents of a DNS cache, used to keep the cache across restarts.
+ *
+ * A snapshot starts with a header (magic number, format version, time of writing, and the
+ * number of names, nodes and records it contains), followed by a table of names and by the
+ * cached nodes. Every host name and textual result (e.g., the target of a CNAME or NS record) is
+ * stored once in the name table, and referred to by its index. Names are interned label by
+ * label: each entry of the table holds the first label of a name and the index of the rest of
+ * the name (its parent domain), so the names in a zone share a single copy of the zone's name.
+ * Each node is stored as the index
+ * of its host name, its record type and the number of its records, followed by the records. Each
+ * record holds its absolute expiration time (in milliseconds since the epoch), its original TTL,
+ * and its result: either a packed IPv4 or IPv6 address, or the index of a name. All values are
+ * big-endian.
+ *
+ * Snapshots are written to a temporary file that then replaces the snapshot, so an interrupted
+ * write never leaves a partial snapshot behind. They are read from a memory-mapped file.
+ */
+class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+
+    private static final int RESULT_NAME = 0;
+    private static final int RESULT_IPV4 = 4;
+    private static final int RESULT_IPV6 = 16;
+
+    private CacheSnapshot() {
+    }
+
+    /** Writes all valid records of a cache to a snapshot file, replacing any existing snapshot.
+     *
+     * @param cache Cache whose records should be written.
+     * @param file  Path of the snapshot file.
+     * @return The number of records written.
+     * @throws IOException If the snapshot could not be written.
+     */
+    static int write(DNSCache cache, Path file) throws IOException {
+        List<DNSNode> nodes = new ArrayList<>();
+        List<Set<ResourceRecord>> results = new ArrayList<>();
+        NameTable names = new NameTable();
+        int[] recordCount = new int[1];
+        cache.forEachNodeUnordered((node, records) -> {
+            nodes.add(node);
+            results.add(records);
+            names.intern(node.getHostName());
+            for (ResourceRecord record : records) {
+                if (record.getInetResult() == null)
+                    names.intern(record.getTextResult());
+            }
+            recordCount[0] += records.size();
+        });
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(CoarseClock.currentTimeMillis());
+            out.writeInt(names.size());
+            out.writeInt(nodes.size());
+            out.writeInt(recordCount[0]);
+
+            for (int i = 0; i < names.size(); i++) {
+                byte[] label = names.labels.get(i);
+                out.writeShort(label.length);
+                out.write(label);
+                out.writeInt(names.parents.get(i));
+            }
+
+            for (int i = 0; i < nodes.size(); i++) {
+                DNSNode node = nodes.get(i);
+                Set<ResourceRecord> records = results.get(i);
+                out.writeInt(names.indexOf(node.getHostName()));
+                out.writeShort(node.getType().getCode());
+                out.writeShort(records.size());
+                for (ResourceRecord record : records) {
+                    out.writeLong(record.getExpirationTime());
+                    out.writeInt((int) (record.getLifetime() / 1000));
+                    InetAddress address = record.getInetResult();
+                    if (address == null) {
+                        out.writeByte(RESULT_NAME);
+                        out.writeInt(names.indexOf(record.getTextResult()));
+                    } else {
+                        byte[] packed = address.getAddress();
+                        out.writeByte(packed.length);
+                        out.write(packed);
+                    }
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return recordCount[0];
+    }
+
+    /** Adds the records of a snapshot file to a cache. Records that expired since the snapshot
+     * was written are skipped.
+     *
+     * @param cache Cache the records should be added to.
+     * @param file  Path of the snapshot file.
+     * @return The number of records added to the cache.
+     * @throws IOException If the snapshot could not be read, or is not a valid snapshot.
+     */
+    static int load(DNSCache cache, Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a cache snapshot: " + file);
+            int version = buffer.getShort() & 0xFFFF;
+            if (version != VERSION)
+                throw new IOException("Unsupported cache snapshot version: " + version);
+            buffer.getLong(); // Time of writing, not needed to restore records
+            String[] names = new String[buffer.getInt()];
+            int nodeCount = buffer.getInt();
+            buffer.getInt(); // Record count, not needed to restore records
+
+            byte[] bytes = new byte[0xFFFF];
+            for (int i = 0; i < names.length; i++) {
+                int length = buffer.getShort() & 0xFFFF;
+                buffer.get(bytes, 0, length);
+                String label = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                int parent = buffer.getInt();
+                names[i] = parent < 0 ? label : label + "." + names[parent];
+            }
+
+            long now = CoarseClock.currentTimeMillis();
+            int loaded = 0;
+            byte[] ipv4 = new byte[RESULT_IPV4];
+            byte[] ipv6 = new byte[RESULT_IPV6];
+            for (int i = 0; i < nodeCount; i++) {
+                String hostName = names[buffer.getInt()];
+                RecordType type = RecordType.getByCode(buffer.getShort() & 0xFFFF);
+                DNSNode node = new DNSNode(hostName, type);
+                int records = buffer.getShort() & 0xFFFF;
+                List<ResourceRecord> valid = new ArrayList<>(records);
+                for (int j = 0; j < records; j++) {
+                    long expirationTime = buffer.getLong();
+                    long lifetime = (buffer.getInt() & 0xFFFFFFFFL) * 1000;
+                    int kind = buffer.get();
+                    String text;
+                    InetAddress address = null;
+                    if (kind == RESULT_NAME) {
+                        text = names[buffer.getInt()];
+                    } else if (kind == RESULT_IPV4 || kind == RESULT_IPV6) {
+                        byte[] packed = kind == RESULT_IPV4 ? ipv4 : ipv6;
+                        buffer.get(packed);
+                        address = InetAddress.getByAddress(hostName, packed);
+                        text = address.getHostAddress();
+                    } else {
+                        throw new IOException("Invalid result kind in cache snapshot: " + kind);
+                    }
+
+                    if (expirationTime > now)
+                        valid.add(new ResourceRecord(node, expirationTime, lifetime, text, address));
+                }
+                if (!valid.isEmpty()) {
+                    cache.addResults(node, valid);
+                    loaded += valid.size();
+                }
+            }
+            return loaded;
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupted cache snapshot: " + file, e);
+        }
+    }
+
+    /** Table of the names written to a snapshot. A name is split at its first dot into a label
+     * and a parent name, which is interned first, so parents always precede their children in the
+     * table. Splitting at the first dot and joining with a dot always gives back the original
+     * name, whether or not it is a valid host name.
+     */
+    private static class NameTable {
+
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<byte[]> labels = new ArrayList<>();
+        final List<Integer> parents = new ArrayList<>();
+
+        int intern(String name) {
+            Integer index = indexes.get(name);
+            if (index != null)
+                return index;
+
+            int dot = name.indexOf('.');
+            int parent = -1;
+            String label = name;
+            if (dot >= 0 && dot < name.length() - 1) {
+                parent = intern(name.substring(dot + 1));
+                label = name.substring(0, dot);
+            }
+            labels.add(label.getBytes(StandardCharsets.UTF_8));
+            parents.add(parent);
+            indexes.put(name, labels.size() - 1);
+            return labels.size() - 1;
+        }
+
+        int indexOf(String name) {
+            return indexes.get(name);
+        }
+
+        int size() {
+            return labels.size();
+        }
+    }
+}
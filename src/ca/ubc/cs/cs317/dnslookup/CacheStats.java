@@ -0,0 +1,103 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Snapshot of the counters maintained by the DNS cache. Hits and misses are counted for each
+ * call to DNSCache.getCachedResults, while evictions count nodes removed by the size bound
+ * (expired records are not counted as evictions). Negative hits count queries answered by a
+ * cached negative answer (DNSCache.hasNegativeResult).
+ * Prefetches count background refreshes of popular records, and useful prefetches count those
+ * refreshed nodes that were read again after their old records would have expired. Stale hits
+ * count expired records served because no fresh answer could be obtained in time.
+ */
+public class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long negativeHitCount;
+    private final long negativeSize;
+    private final long prefetchCount;
+    private final long usefulPrefetchCount;
+    private final long staleHitCount;
+    private final long size;
+    private final long maximumSize;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long negativeHitCount,
+               long negativeSize, long prefetchCount, long usefulPrefetchCount, long staleHitCount,
+               long size, long maximumSize) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.negativeHitCount = negativeHitCount;
+        this.negativeSize = negativeSize;
+        this.prefetchCount = prefetchCount;
+        this.usefulPrefetchCount = usefulPrefetchCount;
+        this.staleHitCount = staleHitCount;
+        this.size = size;
+        this.maximumSize = maximumSize;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /** The number of negative answers (name errors and NODATA) currently held by the cache.
+     *
+     * @return Number of negative entries in the cache.
+     */
+    public long getNegativeSize() {
+        return negativeSize;
+    }
+
+    public long getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    public long getUsefulPrefetchCount() {
+        return usefulPrefetchCount;
+    }
+
+    public long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /** The number of nodes (host name and type) currently held by the cache.
+     *
+     * @return Number of nodes in the cache.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /** The ratio of lookups that were answered by the cache.
+     *
+     * @return Hit ratio between 0 and 1, or 0 if no lookup was performed.
+     */
+    public double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d/%d hits=%d misses=%d hitRatio=%.3f evictions=%d negativeSize=%d negativeHits=%d "
+                        + "prefetches=%d usefulPrefetches=%d staleHits=%d",
+                size, maximumSize, hitCount, missCount, getHitRatio(), evictionCount, negativeSize, negativeHitCount,
+                prefetchCount, usefulPrefetchCount, staleHitCount);
+    }
+}
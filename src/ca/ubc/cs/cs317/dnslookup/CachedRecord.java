@@ -0,0 +1,95 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/** View of an A or AAAA record stored by the cache in packed form (see DNSCache). The address is
+ * kept as primitive bits, and the InetAddress and textual form of the record's result are only
+ * created if they are requested.
+ *
+ * Views are shared by the threads reading a cache entry, so the results created on request are
+ * published through volatile fields; threads racing to create them get equal objects. They are
+ * not serialized, since they can be created again from the address bits.
+ */
+class CachedRecord extends ResourceRecord {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean ipv6;
+    private final long addressHigh;
+    private final long addressLow;
+    private transient volatile InetAddress inetResult;
+    private transient volatile String textResult;
+
+    /** Creates the view of a packed address record.
+     *
+     * @param node           Host name and type of the record.
+     * @param expirationTime Time at which the record expires, as returned by CoarseClock.
+     * @param lifetime       TTL the record was originally created with, in milliseconds.
+     * @param ipv6           true for an IPv6 address, false for an IPv4 address.
+     * @param addressHigh    First 8 bytes of an IPv6 address, or 0 for an IPv4 address.
+     * @param addressLow     Last 8 bytes of an IPv6 address, or the IPv4 address.
+     */
+    CachedRecord(DNSNode node, long expirationTime, long lifetime, boolean ipv6, long addressHigh, long addressLow) {
+        super(node, expirationTime, lifetime, null, null);
+        this.ipv6 = ipv6;
+        this.addressHigh = addressHigh;
+        this.addressLow = addressLow;
+    }
+
+    @Override
+    public String getTextResult() {
+        String text = textResult;
+        if (text == null) {
+            if (ipv6) {
+                text = getInetResult().getHostAddress();
+            } else {
+                int address = (int) addressLow;
+                text = (address >>> 24) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+            }
+            textResult = text;
+        }
+        return text;
+    }
+
+    @Override
+    public InetAddress getInetResult() {
+        InetAddress inet = inetResult;
+        if (inet == null) {
+            byte[] address = new byte[ipv6 ? 16 : 4];
+            if (ipv6) {
+                pack(address, 0, addressHigh);
+                pack(address, 8, addressLow);
+            } else {
+                pack(address, 0, addressLow);
+            }
+            try {
+                inet = InetAddress.getByAddress(getHostName(), address);
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e); // Only thrown for invalid address lengths
+            }
+            inetResult = inet;
+        }
+        return inet;
+    }
+
+    /** Writes the low bytes of a value into an array, most significant first, filling it from an
+     * offset up to either 8 bytes or the end of the array.
+     */
+    private static void pack(byte[] bytes, int offset, long value) {
+        int length = Math.min(8, bytes.length - offset);
+        for (int i = 0; i < length; i++)
+            bytes[offset + i] = (byte) (value >>> (8 * (length - 1 - i)));
+    }
+
+    /** Returns the bits of the first (or, for IPv4, only) 8 bytes of an address, most significant
+     * first.
+     */
+    static long unpack(byte[] bytes, int offset) {
+        int length = Math.min(8, bytes.length - offset);
+        long value = 0;
+        for (int i = 0; i < length; i++)
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        return value;
+    }
+}
@@ -0,0 +1,53 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Coarse, monotonic source of the current time in milliseconds. The value is anchored to the
+ * wall clock when the class is loaded and advanced using System.nanoTime(), so it never moves
+ * backwards when the system clock is adjusted. A daemon thread refreshes the value every few
+ * milliseconds, allowing hot paths (such as checking if a cached record has expired) to read
+ * the time from a volatile field instead of querying the operating system.
+ */
+final class CoarseClock {
+
+    private static final long TICK_MILLIS = 5;
+
+    private static final long ANCHOR_MILLIS = System.currentTimeMillis();
+    private static final long ANCHOR_NANOS = System.nanoTime();
+
+    private static volatile long now = ANCHOR_MILLIS;
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = preciseTimeMillis();
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /** Returns the current time, in milliseconds since the epoch, with a resolution of a few
+     * milliseconds.
+     *
+     * @return Current time in milliseconds.
+     */
+    static long currentTimeMillis() {
+        return now;
+    }
+
+    /** Returns the current time, in milliseconds since the epoch, computed from the monotonic
+     * clock at the moment of the call.
+     *
+     * @return Current time in milliseconds.
+     */
+    static long preciseTimeMillis() {
+        return ANCHOR_MILLIS + (System.nanoTime() - ANCHOR_NANOS) / 1000000;
+    }
+}
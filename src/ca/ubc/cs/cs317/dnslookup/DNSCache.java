@@ -1,18 +1,80 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server, and are never returned to the user once
+ * expired.
+ *
+ * Nodes are also indexed by a trie of host names keyed by their labels in reverse order (see
+ * NameTree), so that the closest enclosing zone of a name, or all names under a domain, are found
+ * with a single walk of the trie. The trie only links names to the nodes cached for them: records
+ * are always read from the hash map, so looking up a node takes a single hash probe.
+ *
+ * The cache is safe to use from multiple threads. Each node is linked to an immutable set of
+ * records, which is replaced atomically (under the lock of the node's hash bin) whenever a
+ * record is added or an expired record is dropped. Nodes are added to and removed from the trie
+ * under the same lock, so the trie always holds the nodes of the map. Readers never take a lock:
+ * they simply return the set currently linked to the node.
+ *
+ * Expired records are not removed by readers. Instead, each node is scheduled in a timing wheel
+ * (see ExpiryWheel) according to its earliest expiration, and a background thread reclaims
+ * expired records in bulk. Readers only compare the earliest expiration of a node with the
+ * current time, and filter out expired records in the short window before they are reclaimed.
+ *
+ * Expired records are kept for a stale window after their expiration (RFC 8767). They are never
+ * returned by getCachedResults, but may be obtained with getStaleResults when a fresh answer
+ * cannot be obtained in time. Nodes are scheduled in the timing wheel for the end of the stale
+ * window of their earliest record.
+ *
+ * The number of nodes held by the cache is bounded. Once the bound is exceeded, nodes are
+ * evicted following a segmented LRU policy (see CachePolicy).
+ *
+ * Popular records may be refreshed ahead of their expiration. When a node that was read at
+ * least PREFETCH_MINIMUM_HITS times is read again within the last fraction of its TTL given by
+ * the prefetch threshold, the prefetcher registered with setPrefetcher is invoked on a
+ * background thread to resolve the node again, so the new records replace the old ones before
+ * they expire and later readers do not have to wait for a full resolution.
+ *
+ * Negative answers (names that do not exist, and names without records of a type) are cached
+ * separately (see NegativeCache), for the duration given by the SOA record of the zone.
  */
 public class DNSCache {
 
+    public static final int DEFAULT_MAXIMUM_SIZE = 100000;
+    public static final int DEFAULT_MAXIMUM_NEGATIVE_SIZE = 10000;
+    public static final double DEFAULT_PREFETCH_THRESHOLD = 0.1;
+    public static final int PREFETCH_MINIMUM_HITS = 3;
+    public static final long DEFAULT_STALE_WINDOW = 86400;
+    public static final long STALE_TTL = 30;
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private ConcurrentMap<DNSNode, Entry> cachedResults = new ConcurrentHashMap<>();
+    private NameTree<DNSNode> cachedNames = new NameTree<>(node -> node);
+    private CachePolicy policy = new CachePolicy(DEFAULT_MAXIMUM_SIZE);
+    private ExpiryWheel expiryWheel = new ExpiryWheel(this::expire);
+    private NegativeCache negativeCache = new NegativeCache(DEFAULT_MAXIMUM_NEGATIVE_SIZE);
+    private Set<DNSNode> prefetching = ConcurrentHashMap.newKeySet();
+    private volatile Consumer<DNSNode> prefetcher;
+    private volatile Consumer<DNSNode> changeListener;
+    private volatile double prefetchThreshold = DEFAULT_PREFETCH_THRESHOLD;
+    private volatile long staleWindowMillis = DEFAULT_STALE_WINDOW * 1000;
+
+    private LongAdder hitCount = new LongAdder();
+    private LongAdder missCount = new LongAdder();
+    private LongAdder evictionCount = new LongAdder();
+    private LongAdder negativeHitCount = new LongAdder();
+    private LongAdder prefetchCount = new LongAdder();
+    private LongAdder usefulPrefetchCount = new LongAdder();
+    private LongAdder staleHitCount = new LongAdder();
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -24,25 +86,31 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are never
+     * included in the returned set. This method does not perform the query itself, it only
+     * returns previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        Entry entry = cachedResults.get(node);
+        long now = CoarseClock.currentTimeMillis();
+        Set<ResourceRecord> results = validResults(entry, now);
+        if (results.isEmpty()) {
+            missCount.increment();
             return Collections.emptySet();
-
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        }
+        hitCount.increment();
+        policy.onAccess(entry.node);
+        onHit(node, entry, now);
+        return results;
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
+     * record, otherwise the existing record is maintained. The comparison and replacement are
+     * performed atomically with respect to other writers of the same node.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
@@ -51,42 +119,725 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        addResults(record.getNode(), Collections.singleton(record));
+    }
+
+    /** Adds several still valid resource records of the same node to the DNS cache at once, with
+     * the same effect as adding each of them with addResult. Used to restore a snapshot of the
+     * cache (see CacheSnapshot).
+     *
+     * @param node    DNS query (host name and record type) the records are results of.
+     * @param records Resource records to be added.
+     */
+    void addResults(DNSNode node, Collection<ResourceRecord> records) {
+        // Whether the entry was inserted (2), replaced (1) or left unchanged (0)
+        int[] outcome = new int[1];
+        Entry entry = cachedResults.compute(node, (n, old) -> {
+            if (old == null) {
+                outcome[0] = 2;
+                cachedNames.put(n);
+                // Under the lock of the map entry, so the policy never holds a node missing
+                // from the map, or misses one that is in it
+                policy.onInsert(n);
+                return Entry.of(n, records.size() == 1 ? records : new LinkedHashSet<>(records));
+            }
+            Entry updated = old;
+            for (ResourceRecord record : records)
+                updated = updated.withRecord(record);
+            outcome[0] = updated != old ? 1 : 0;
+            return updated;
+        });
+        // Read once, so the array does not outlive the update and the JIT can elide it
+        int change = outcome[0];
+        // The wheel refers to nodes by the key kept in the map
+        expiryWheel.schedule(entry.node, entry.earliestExpiration + staleWindowMillis);
+
+        if (change == 2)
+            evictExcess();
+        // Records that were already cached with a later expiration leave the entry unchanged
+        if (change != 0)
+            changed(entry.node);
+    }
+
+    /** Returns the records cached for a query that expired less than the stale window ago, along
+     * with those that are still valid, for use when a fresh answer cannot be obtained (RFC 8767).
+     * Expired records are returned with a TTL of STALE_TTL seconds, and the lookup is counted as
+     * a stale hit only if it returns at least one of them.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        Entry entry = cachedResults.get(node);
+        long now = CoarseClock.currentTimeMillis();
+        if (entry == null || entry.latestExpiration() + staleWindowMillis <= now)
+            return Collections.emptySet();
+
+        Set<ResourceRecord> results = new HashSet<>();
+        boolean stale = false;
+        for (ResourceRecord record : entry) {
+            if (record.getExpirationTime() > now) {
+                results.add(record);
+            } else if (record.getExpirationTime() + staleWindowMillis > now) {
+                results.add(record.withTTL(STALE_TTL));
+                stale = true;
+            }
+        }
+        // Only answers that include expired records count as served stale
+        if (stale)
+            staleHitCount.increment();
+        return Collections.unmodifiableSet(results);
+    }
+
+    /** Returns true if the cache holds records for a query that may be returned by
+     * getStaleResults, i.e., records that are either valid or expired within the stale window.
+     * This method does not affect the cache statistics.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if stale results are available for the query.
+     */
+    public boolean hasStaleResults(DNSNode node) {
+        Entry entry = cachedResults.get(node);
+        return entry != null && entry.latestExpiration() + staleWindowMillis > CoarseClock.currentTimeMillis();
+    }
+
+    /** Changes how long expired records are kept to be served stale. Nodes already scheduled for
+     * removal keep their current schedule, but the new window applies when they are visited.
+     *
+     * @param seconds Stale window, in seconds. A window of 0 disables serving stale records.
+     */
+    public void setStaleWindow(long seconds) {
+        if (seconds < 0)
+            throw new IllegalArgumentException("Invalid stale window: " + seconds);
+        staleWindowMillis = seconds * 1000;
+    }
+
+    public long getStaleWindow() {
+        return staleWindowMillis / 1000;
+    }
+
+    /** Records that a host name does not exist (NXDOMAIN), for all record types.
+     *
+     * @param hostName Host name that does not exist.
+     * @param ttl      Time, in seconds, the negative answer may be cached for.
+     */
+    public void addNameError(String hostName, long ttl) {
+        if (ttl > 0)
+            negativeCache.addNameError(hostName, CoarseClock.currentTimeMillis() + ttl * 1000);
+    }
+
+    /** Records that a host name has no record of a specific type (NODATA).
+     *
+     * @param node Host name and record type without records.
+     * @param ttl  Time, in seconds, the negative answer may be cached for.
+     */
+    public void addNoData(DNSNode node, long ttl) {
+        if (ttl > 0)
+            negativeCache.addNoData(node, CoarseClock.currentTimeMillis() + ttl * 1000);
+    }
+
+    /** Returns true if the cache holds an unexpired negative answer for a query, either because
+     * its host name does not exist or because the host name has no record of its type.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if the query is known to have no results.
+     */
+    public boolean hasNegativeResult(DNSNode node) {
+        boolean negative = negativeCache.isNegative(node, CoarseClock.currentTimeMillis());
+        if (negative)
+            negativeHitCount.increment();
+        return negative;
+    }
+
+    /** Returns true if the cache holds an unexpired name error (NXDOMAIN) for a host name.
+     *
+     * @param hostName Host name to be checked.
+     * @return true if the host name is known not to exist.
+     */
+    public boolean isNameError(String hostName) {
+        return negativeCache.isNameError(hostName, CoarseClock.currentTimeMillis());
+    }
+
+    /** Returns true if the cache holds an unexpired negative answer for a query, as
+     * hasNegativeResult does, but without affecting the cache statistics.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if the query is known to have no results.
+     */
+    public boolean isNegative(DNSNode node) {
+        return negativeCache.isNegative(node, CoarseClock.currentTimeMillis());
+    }
+
+    /** Finds the SOA record of the closest enclosing zone of a host name that is known to the
+     * cache, e.g., to be included in a negative answer. The host name itself and each of its
+     * ancestors are considered in turn. This lookup does not affect the cache statistics or
+     * eviction policy.
+     *
+     * @param hostName Host name whose closest enclosing zone should be found.
+     * @return The SOA record of that zone, or null if no enclosing zone has a cached SOA record.
+     */
+    public ResourceRecord getClosestSOA(String hostName) {
+        long now = CoarseClock.currentTimeMillis();
+        for (DNSNode zone : cachedNames.getAncestors(hostName, RecordType.SOA))
+            for (ResourceRecord soa : validResults(cachedResults.get(zone), now))
+                return soa;
+        return null;
+    }
+
+    /** Finds the name servers of the closest enclosing zone of a host name that are known to the
+     * cache. The host name itself and each of its ancestors (e.g., www.cs.ubc.ca, cs.ubc.ca,
+     * ubc.ca, ca) are considered in turn, and the first one with cached NS records for which at
+     * least one name server has a cached address is selected. The root zone is never selected.
+     * This lookup does not affect the cache statistics or eviction policy.
+     *
+     * @param hostName Host name whose closest enclosing zone should be found.
+     * @return Addresses of the name servers of that zone, or an empty list if no enclosing zone
+     * with usable name servers is cached.
+     */
+    public List<InetAddress> getClosestNameServers(String hostName) {
+        long now = CoarseClock.currentTimeMillis();
+        for (DNSNode zone : cachedNames.getAncestors(hostName, RecordType.NS)) {
+            List<InetAddress> addresses = getNameServerAddresses(zone, now);
+            if (!addresses.isEmpty())
+                return addresses;
+        }
+        return Collections.emptyList();
+    }
+
+    /** Returns the name of the zone whose name servers getClosestNameServers would return for
+     * a host name. This lookup does not affect the cache statistics or eviction policy.
+     *
+     * @param hostName Host name whose closest enclosing zone should be found.
+     * @return The name of that zone, or null if no enclosing zone with usable name servers is
+     * cached.
+     */
+    public String getClosestZone(String hostName) {
+        long now = CoarseClock.currentTimeMillis();
+        for (DNSNode zone : cachedNames.getAncestors(hostName, RecordType.NS))
+            if (!getNameServerAddresses(zone, now).isEmpty())
+                return zone.getHostName();
+        return null;
+    }
+
+    private List<InetAddress> getNameServerAddresses(DNSNode zone, long now) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord ns : validResults(cachedResults.get(zone), now)) {
+            for (ResourceRecord address : validResults(new DNSNode(ns.getTextResult(), RecordType.A)))
+                if (address.getInetResult() != null && !addresses.contains(address.getInetResult()))
+                    addresses.add(address.getInetResult());
         }
+        return addresses;
+    }
+
+    /** Returns true if a set of results is the one currently cached for a node, i.e., if it was
+     * returned by getCachedResults and no record of the node was added, expired or evicted
+     * since. This lookup does not affect the cache statistics or eviction policy.
+     *
+     * @param node    DNS query (host name and record type) the results were obtained for.
+     * @param results Results returned by getCachedResults.
+     * @return true if the results are still those of the node.
+     */
+    boolean isCurrent(DNSNode node, Set<ResourceRecord> results) {
+        Entry entry = cachedResults.get(node);
+        return entry != null && entry == results && entry.earliestExpiration > CoarseClock.currentTimeMillis();
+    }
+
+    /** Returns the time at which the prefetch window of a set of results starts, i.e., the time
+     * from which a read of the node may trigger a refresh (see setPrefetchThreshold). Copies of
+     * the results kept elsewhere should not be used past that time, so that popular records are
+     * still read from the cache, and refreshed, before they expire. This lookup does not affect
+     * the cache statistics or eviction policy.
+     *
+     * @param node    DNS query (host name and record type) the results were obtained for.
+     * @param results Results returned by getCachedResults.
+     * @return The start of the prefetch window of the record that expires first, or -1 if the
+     * results are no longer those of the node.
+     */
+    long getPrefetchTime(DNSNode node, Set<ResourceRecord> results) {
+        Entry entry = cachedResults.get(node);
+        if (entry == null || entry != results)
+            return -1;
+        return entry.earliestExpiration - (long) (entry.earliestLifetime() * prefetchThreshold);
+    }
+
+    /** Records a read of a node whose results were obtained from a copy kept elsewhere (such as
+     * a response cached by the server mode), so the eviction policy does not consider the node
+     * unused. This does not affect the cache statistics or trigger a refresh of the node.
+     *
+     * @param node DNS query (host name and record type) that was read.
+     */
+    void touch(DNSNode node) {
+        policy.onAccess(node);
+    }
+
+    /** Registers the action invoked whenever the records cached for a node are replaced or
+     * removed (because a record was added, expired or evicted), e.g., to drop copies of those
+     * records kept elsewhere. It is not invoked for updates that leave the records unchanged. The
+     * action is invoked on the thread changing the cache, after the change is visible to readers.
+     *
+     * @param listener Action invoked with the node that changed, or null to stop notifying
+     *                 changes.
+     */
+    void setChangeListener(Consumer<DNSNode> listener) {
+        this.changeListener = listener;
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Registers the action used to refresh popular records ahead of their expiration. The
+     * action is invoked on a background thread with the node to be refreshed, and should resolve
+     * that node again and add the new records to the cache. At most one refresh is performed for
+     * a node at a time.
+     *
+     * @param prefetcher Action used to resolve a node again, or null to disable prefetching.
+     */
+    public void setPrefetcher(Consumer<DNSNode> prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /** Changes the fraction of a record's TTL, at the end of its lifetime, during which a read
+     * of a popular node triggers a refresh. For example, with a threshold of 0.1, a node whose
+     * records had a TTL of 300 seconds is refreshed if read in the last 30 seconds before it
+     * expires.
+     *
+     * @param threshold Fraction of the TTL, between 0 and 1. A threshold of 0 disables
+     *                  prefetching.
+     */
+    public void setPrefetchThreshold(double threshold) {
+        if (threshold < 0 || threshold > 1)
+            throw new IllegalArgumentException("Invalid prefetch threshold: " + threshold);
+        prefetchThreshold = threshold;
+    }
+
+    public double getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    /** Changes the maximum number of nodes (host name and type) kept by the cache. If the cache
+     * currently holds more nodes than the new bound, the excess nodes are evicted immediately.
+     *
+     * @param maximumSize Maximum number of nodes to be kept in the cache.
+     */
+    public void setMaximumSize(int maximumSize) {
+        policy.setMaximumSize(maximumSize);
+        evictExcess();
+    }
+
+    /** Returns a snapshot of the hit, miss and eviction counters of the cache.
+     *
+     * @return Current cache statistics.
+     */
+    public CacheStats getStats() {
+        return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum(),
+                negativeHitCount.sum(), negativeCache.size(), prefetchCount.sum(), usefulPrefetchCount.sum(),
+                staleHitCount.sum(),
+                cachedResults.size(), policy.getMaximumSize());
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are not included
+     * in the sets passed to the action. Queries are visited in host name order.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
-        }
+        forEachNodeUnder("", consumer);
+    }
+
+    /** Perform a specific action for each query and its set of cached records, as forEachNode
+     * does, but only for queries of a domain name and of the names under it (e.g., for ubc.ca,
+     * queries of ubc.ca itself, cs.ubc.ca, www.cs.ubc.ca and so on). Queries are visited in host
+     * name order.
+     *
+     * @param domain   Domain name whose queries should be visited, or an empty string for all
+     *                 queries.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNodeUnder(String domain, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        SortedMap<DNSNode, Entry> entries = new TreeMap<>();
+        cachedNames.forEachUnder(domain, (node, key) -> {
+            Entry entry = cachedResults.get(key);
+            if (entry != null)
+                entries.put(node, entry);
+        });
+        long now = CoarseClock.currentTimeMillis();
+        entries.forEach((node, entry) -> {
+            Set<ResourceRecord> results = validResults(entry, now);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
+        });
+    }
+
+    /** Perform a specific action for each query and its set of cached records, as forEachNode
+     * does, but visiting queries in no particular order. Used to write a snapshot of the cache.
+     *
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    void forEachNodeUnordered(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        long now = CoarseClock.currentTimeMillis();
+        cachedResults.forEach((node, entry) -> {
+            Set<ResourceRecord> results = validResults(entry, now);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
+        });
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped. Queries
+     * are visited in host name order.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        forEachNode((node, results) -> results.forEach(record -> consumer.accept(node, record)));
+    }
+
+    private Set<ResourceRecord> validResults(DNSNode node) {
+        return validResults(cachedResults.get(node), CoarseClock.currentTimeMillis());
+    }
+
+    private Set<ResourceRecord> validResults(Entry entry, long now) {
+        if (entry == null)
+            return Collections.emptySet();
+
+        if (entry.earliestExpiration > now)
+            return entry;
+        if (entry.latestExpiration() <= now)
+            return Collections.emptySet();
+
+        // Some records expired but were not reclaimed yet
+        Entry valid = entry.withoutExpired(now);
+        return valid == null ? Collections.emptySet() : valid;
+    }
+
+    /** Updates the popularity of a node that was just read, and starts a refresh of the node if
+     * it is popular and close to its expiration. Also counts the first read of a refreshed node
+     * that happens after its old records would have expired as a useful prefetch.
+     */
+    private void onHit(DNSNode node, Entry entry, long now) {
+        long replacedExpiration = entry.replacedExpiration;
+        if (replacedExpiration != 0 && now >= replacedExpiration) {
+            entry.replacedExpiration = 0;
+            usefulPrefetchCount.increment();
+        }
+
+        // Hits are counted without synchronization (a lost update only delays a refresh), and
+        // only up to the minimum, so popular entries are not written on every read
+        int hits = entry.hits;
+        if (hits < PREFETCH_MINIMUM_HITS) {
+            entry.hits = hits + 1;
+            return;
+        }
+        Consumer<DNSNode> prefetcher = this.prefetcher;
+        if (prefetcher == null)
+            return;
+        long remaining = entry.earliestExpiration - now;
+        if (remaining > entry.earliestLifetime() * prefetchThreshold || !prefetching.add(node))
+            return;
+
+        prefetchCount.increment();
+        Thread.ofVirtual().name("dns-prefetch").start(() -> {
+            try {
+                prefetcher.accept(node);
+                Entry refreshed = cachedResults.get(node);
+                if (refreshed != null && refreshed.earliestExpiration > entry.earliestExpiration)
+                    refreshed.replacedExpiration = entry.earliestExpiration;
+            } finally {
+                prefetching.remove(node);
+            }
+        });
+    }
+
+    /** Removes the records of a node whose stale window has passed. Invoked by the expiry wheel
+     * once the stale window of the earliest record of the node has passed.
+     *
+     * @param node DNS query whose expired records should be removed.
+     * @return The end of the stale window of the next record to expire for the node, or -1 if the
+     * node was removed from the cache.
+     */
+    private long expire(DNSNode node) {
+        long window = staleWindowMillis;
+        long purgeTime = CoarseClock.currentTimeMillis() - window;
+        boolean[] replaced = new boolean[1];
+        Entry entry = cachedResults.computeIfPresent(node, (n, old) -> {
+            Entry valid = old.earliestExpiration > purgeTime ? old : old.withoutExpired(purgeTime);
+            if (valid == null) {
+                cachedNames.remove(n);
+                policy.onRemove(n);
+            }
+            replaced[0] = valid != old;
+            return valid;
+        });
+        if (replaced[0])
+            changed(node);
+        if (entry == null)
+            return -1;
+        return entry.earliestExpiration + window;
+    }
+
+    private void changed(DNSNode node) {
+        Consumer<DNSNode> listener = changeListener;
+        if (listener != null)
+            listener.accept(node);
+    }
+
+    private void evictExcess() {
+        DNSNode victim;
+        while ((victim = policy.nextVictim()) != null) {
+            Entry[] removed = new Entry[1];
+            cachedResults.computeIfPresent(victim, (n, old) -> {
+                removed[0] = old;
+                cachedNames.remove(n);
+                // The node may have been removed and added again since it was picked
+                policy.onRemove(n);
+                return null;
+            });
+            Entry entry = removed[0];
+            if (entry != null) {
+                expiryWheel.cancel(victim, entry.earliestExpiration + staleWindowMillis);
+                evictionCount.increment();
+                changed(victim);
+            }
         }
     }
 
+    /** Immutable set of records cached for a node, along with the earliest expiration time
+     * among those records. The number of reads of the entry, and the expiration of the entry
+     * it replaced if it was refreshed ahead of time, are tracked for prefetching.
+     *
+     * Records are not kept as ResourceRecord objects. Each record is stored as a few longs in a
+     * single array: its expiration time, its lifetime in seconds (high half of the second long)
+     * and its result, either an IPv4 address (low half of the second long), an IPv6 address (two
+     * more longs) or an interned name (kept in a separate array). Nodes whose records do not share
+     * one of these kinds of results keep the original records instead. The records seen through
+     * the set are views built when they are iterated (see CachedRecord).
+     */
+    private static final class Entry extends AbstractSet<ResourceRecord> {
+
+        private static final byte KIND_IPV4 = 0;
+        private static final byte KIND_IPV6 = 1;
+        private static final byte KIND_NAME = 2;
+        private static final byte KIND_RECORD = 3;
+
+        final DNSNode node;
+        final long earliestExpiration;
+        volatile int hits;
+        volatile long replacedExpiration;
+        private final byte kind;
+        private final long[] data;
+        private final Object[] results;
+
+        private Entry(DNSNode node, byte kind, long[] data, Object[] results) {
+            this.node = node;
+            this.kind = kind;
+            this.data = data;
+            this.results = results;
+            long earliest = Long.MAX_VALUE;
+            for (int i = 0; i < data.length; i += stride())
+                earliest = Math.min(earliest, data[i]);
+            this.earliestExpiration = earliest;
+        }
+
+        /** Creates the entry of a node from a collection of distinct records. */
+        static Entry of(DNSNode node, Collection<ResourceRecord> records) {
+            byte kind = -1;
+            for (ResourceRecord record : records) {
+                byte recordKind = kindOf(record);
+                kind = kind < 0 || kind == recordKind ? recordKind : KIND_RECORD;
+            }
+            Builder builder = new Builder(node, kind, records.size());
+            for (ResourceRecord record : records)
+                builder.add(record);
+            return builder.build();
+        }
+
+        private static byte kindOf(ResourceRecord record) {
+            InetAddress address = record.getInetResult();
+            if (address == null)
+                return KIND_NAME;
+            return address.getAddress().length == 4 ? KIND_IPV4 : KIND_IPV6;
+        }
+
+        private int stride() {
+            return kind == KIND_IPV6 ? 4 : 2;
+        }
+
+        private long expiration(int index) {
+            return data[index * stride()];
+        }
+
+        private long lifetime(int index) {
+            return (data[index * stride() + 1] >>> 32) * 1000;
+        }
+
+        /** The expiration time of the record that expires last. */
+        long latestExpiration() {
+            long latest = Long.MIN_VALUE;
+            for (int i = 0; i < size(); i++)
+                latest = Math.max(latest, expiration(i));
+            return latest;
+        }
+
+        /** The TTL (in milliseconds) of the record that expires first. */
+        long earliestLifetime() {
+            for (int i = 0; i < size(); i++)
+                if (expiration(i) == earliestExpiration)
+                    return lifetime(i);
+            return 0;
+        }
+
+        private ResourceRecord get(int index) {
+            int offset = index * stride();
+            switch (kind) {
+                case KIND_IPV4:
+                    return new CachedRecord(node, data[offset], lifetime(index), false, 0, data[offset + 1] & 0xFFFFFFFFL);
+                case KIND_IPV6:
+                    return new CachedRecord(node, data[offset], lifetime(index), true, data[offset + 2], data[offset + 3]);
+                case KIND_NAME:
+                    return new ResourceRecord(node, data[offset], lifetime(index), (String) results[index], null);
+                default:
+                    return (ResourceRecord) results[index];
+            }
+        }
+
+        /** Returns true if the record at an index has the same result as another record. */
+        private boolean matches(int index, ResourceRecord record) {
+            int offset = index * stride();
+            InetAddress address = record.getInetResult();
+            byte[] packed = address == null ? null : address.getAddress();
+            switch (kind) {
+                case KIND_IPV4:
+                    return packed != null && packed.length == 4
+                            && (data[offset + 1] & 0xFFFFFFFFL) == CachedRecord.unpack(packed, 0);
+                case KIND_IPV6:
+                    return packed != null && packed.length == 16
+                            && data[offset + 2] == CachedRecord.unpack(packed, 0)
+                            && data[offset + 3] == CachedRecord.unpack(packed, 8);
+                case KIND_NAME:
+                    return packed == null && results[index].equals(record.getTextResult());
+                default:
+                    return results[index].equals(record);
+            }
+        }
+
+        @Override
+        public int size() {
+            return data.length / stride();
+        }
+
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            return new Iterator<ResourceRecord>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size();
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (next >= size())
+                        throw new NoSuchElementException();
+                    return get(next++);
+                }
+            };
+        }
+
+        Entry withRecord(ResourceRecord record) {
+            int oldRecord = -1;
+            for (int i = 0; i < size(); i++) {
+                if (matches(i, record)) {
+                    oldRecord = i;
+                    break;
+                }
+            }
+            if (oldRecord >= 0 && expiration(oldRecord) >= record.getExpirationTime())
+                return this;
+
+            // Records kept only to be served stale are superseded by the new one
+            return copy(CoarseClock.currentTimeMillis(), oldRecord, record);
+        }
+
+        Entry withoutExpired(long now) {
+            return copy(now, -1, null);
+        }
+
+        /** Copies the records of this entry that expire after a given time, except the record at
+         * an index, and adds another record if not null. Returns null if no record is left.
+         */
+        private Entry copy(long now, int skipped, ResourceRecord added) {
+            int count = added == null ? 0 : 1;
+            for (int i = 0; i < size(); i++)
+                if (i != skipped && expiration(i) > now)
+                    count++;
+            if (count == 0)
+                return null;
+
+            byte copyKind = added == null || kindOf(added) == kind ? kind : KIND_RECORD;
+            Builder builder = new Builder(node, copyKind, count);
+            for (int i = 0; i < size(); i++) {
+                if (i != skipped && expiration(i) > now) {
+                    if (copyKind == kind)
+                        builder.copy(this, i);
+                    else
+                        builder.add(get(i));
+                }
+            }
+            if (added != null)
+                builder.add(added);
+            return builder.build();
+        }
+
+        /** Fills the arrays of a new entry, one record at a time. */
+        private static final class Builder {
+
+            private final DNSNode node;
+            private final byte kind;
+            private final int stride;
+            private final long[] data;
+            private final Object[] results;
+            private int count;
+
+            Builder(DNSNode node, byte kind, int size) {
+                this.node = node;
+                this.kind = kind;
+                this.stride = kind == KIND_IPV6 ? 4 : 2;
+                this.data = new long[size * stride];
+                this.results = kind == KIND_NAME || kind == KIND_RECORD ? new Object[size] : null;
+            }
+
+            void add(ResourceRecord record) {
+                int offset = count * stride;
+                data[offset] = record.getExpirationTime();
+                data[offset + 1] = Math.max(0, Math.min(record.getLifetime() / 1000, 0xFFFFFFFFL)) << 32;
+                switch (kind) {
+                    case KIND_IPV4:
+                        data[offset + 1] |= CachedRecord.unpack(record.getInetResult().getAddress(), 0);
+                        break;
+                    case KIND_IPV6:
+                        byte[] packed = record.getInetResult().getAddress();
+                        data[offset + 2] = CachedRecord.unpack(packed, 0);
+                        data[offset + 3] = CachedRecord.unpack(packed, 8);
+                        break;
+                    case KIND_NAME:
+                        // Names such as the targets of NS records are shared by many nodes
+                        results[count] = record.getTextResult().intern();
+                        break;
+                    default:
+                        results[count] = record;
+                }
+                count++;
+            }
+
+            void copy(Entry entry, int index) {
+                System.arraycopy(entry.data, index * stride, data, count * stride, stride);
+                if (results != null)
+                    results[count] = entry.results[index];
+                count++;
+            }
+
+            Entry build() {
+                return new Entry(node, kind, data, results);
+            }
+        }
+    }
 }
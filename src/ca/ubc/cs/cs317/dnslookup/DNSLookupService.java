@@ -1,29 +1,60 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Console;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class DNSLookupService {
 
     private static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_REFERRALS = 16;
+    private static final int QUERY_RETRIES = 2;
+    private static final int DEFAULT_BATCH_CONCURRENCY = 256;
+    private static final long MAX_COALESCED_WAIT_MILLIS = 30000;
+    private static final long STALE_ANSWER_DEADLINE_MILLIS = 1800;
+    private static final long SNAPSHOT_INTERVAL_MINUTES = 5;
+    private static final long TCP_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_TRACE_DUMP_COUNT = 10;
+    private static final String MBEAN_NAME = "ca.ubc.cs.cs317.dnslookup:type=Resolver";
 
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static volatile InetAddress rootServer;
+    private static volatile int dnsPort = DEFAULT_DNS_PORT;
+    private static volatile boolean verboseTracing = false;
+    private static volatile boolean racing = true;
+    private static Path snapshotFile;
+    private static ResolverEngine engine;
+    private static volatile DNSServer server;
+    private static volatile int responseCacheSize = ResponseCache.DEFAULT_MAXIMUM_SIZE;
 
     private static DNSCache cache = DNSCache.getInstance();
-
-    private static Random random = new Random();
+    private static QueryEncoder encoder = new QueryEncoder();
+    private static TcpTransport tcp = new TcpTransport(encoder);
+    private static ServerStats serverStats = new ServerStats();
+    private static ResolverMetrics metrics = new ResolverMetrics();
+    private static TraceRecorder tracer = new TraceRecorder();
+    private static ExecutorService background = Executors.newVirtualThreadPerTaskExecutor();
+    private static SingleFlight<DNSNode, Set<ResourceRecord>> inFlightLookups =
+            new SingleFlight<>(MAX_COALESCED_WAIT_MILLIS);
 
     /**
      * Main function, called when program is first invoked.
@@ -32,11 +63,13 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [snapshotFile]");
+            System.err.println(
+                    "where rootServer is the IP address (in dotted form) of the root DNS server to start the search at,");
             System.err.println(
-                    "where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+                    "and snapshotFile is a file the cache is saved to and restored from across runs.");
             System.exit(1);
         }
 
@@ -49,12 +82,25 @@ public class DNSLookupService {
         }
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            engine = new ResolverEngine(encoder);
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
+        cache.setPrefetcher(DNSLookupService::refresh);
+        registerMBean();
+
+        if (args.length == 2) {
+            snapshotFile = Paths.get(args[1]);
+            loadSnapshot();
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "dns-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(DNSLookupService::saveSnapshot,
+                    SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -100,21 +146,88 @@ public class DNSLookupService {
                     continue;
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
-                    if (commandArgs[1].equalsIgnoreCase("on"))
+                // TRACE: Trace every lookup (printing the trace of each lookup command), trace one
+                // lookup out of N, or print the most recent traces
+                try {
+                    if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on")) {
+                        tracer.setSampleInterval(1);
                         verboseTracing = true;
-                    else if (commandArgs[1].equalsIgnoreCase("off"))
+                    } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                        tracer.setSampleInterval(0);
+                        verboseTracing = false;
+                    } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("sample")) {
+                        tracer.setSampleInterval(Integer.parseInt(commandArgs[2]));
                         verboseTracing = false;
-                    else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    } else if (commandArgs.length <= 3 && commandArgs.length >= 2
+                            && commandArgs[1].equalsIgnoreCase("dump")) {
+                        int count = commandArgs.length == 3 ? Integer.parseInt(commandArgs[2]) : DEFAULT_TRACE_DUMP_COUNT;
+                        for (LookupTrace trace : tracer.recent(count))
+                            trace.render(System.out);
                         continue;
+                    } else {
+                        throw new IllegalArgumentException();
                     }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
-                } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\ttrace on|off|sample N|dump [count]");
+                    continue;
+                }
+                int interval = tracer.getSampleInterval();
+                System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF")
+                        + (interval > 1 ? " (recording 1 in " + interval + " lookups)" : ""));
+            } else if (commandArgs[0].equalsIgnoreCase("race")) {
+                // RACE: Turn staggered queries to multiple name servers on or off
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on"))
+                    racing = true;
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off"))
+                    racing = false;
+                else {
+                    System.err.println("Invalid call. Format:\n\trace on|off");
+                    continue;
+                }
+                System.out.println("Racing name servers is now: " + (racing ? "ON" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Change the UDP payload size advertised to servers, or stop advertising one
+                try {
+                    if (commandArgs.length != 2)
+                        throw new IllegalArgumentException();
+                    if (commandArgs[1].equalsIgnoreCase("off"))
+                        encoder.setEdnsPayloadSize(0);
+                    else
+                        encoder.setEdnsPayloadSize(Integer.parseInt(commandArgs[1]));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tedns size|off");
+                    continue;
+                }
+                int size = encoder.getEdnsPayloadSize();
+                System.out.println("EDNS payload size is now: " + (size == 0 ? "OFF" : size + " bytes"));
+            } else if (commandArgs[0].equalsIgnoreCase("prefetch")) {
+                // PREFETCH: Change the fraction of the TTL in which popular records are refreshed
+                try {
+                    if (commandArgs.length != 2)
+                        throw new IllegalArgumentException();
+                    if (commandArgs[1].equalsIgnoreCase("off"))
+                        cache.setPrefetchThreshold(0);
+                    else
+                        cache.setPrefetchThreshold(Integer.parseInt(commandArgs[1]) / 100.0);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tprefetch percent|off");
+                    continue;
+                }
+                System.out.println("Prefetch threshold is now: " + Math.round(cache.getPrefetchThreshold() * 100) + "%");
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Change how long expired records may be served when servers do not answer
+                try {
+                    if (commandArgs.length != 2)
+                        throw new IllegalArgumentException();
+                    if (commandArgs[1].equalsIgnoreCase("off"))
+                        cache.setStaleWindow(0);
+                    else
+                        cache.setStaleWindow(Long.parseLong(commandArgs[1]));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tstale seconds|off");
                     continue;
                 }
+                System.out.println("Stale window is now: " + cache.getStaleWindow() + " seconds");
             } else if (commandArgs[0].equalsIgnoreCase("lookup") || commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
                 RecordType type;
@@ -132,25 +245,300 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all names listed in a file concurrently
+                RecordType type = RecordType.A;
+                int concurrency = DEFAULT_BATCH_CONCURRENCY;
+                try {
+                    if (commandArgs.length < 2 || commandArgs.length > 4)
+                        throw new IllegalArgumentException();
+                    if (commandArgs.length >= 3)
+                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                    if (commandArgs.length == 4)
+                        concurrency = Integer.parseInt(commandArgs[3]);
+                    if (concurrency <= 0)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [type] [concurrency]");
+                    continue;
+                }
+                findAndPrintBatchResults(commandArgs[1], type, concurrency);
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer DNS queries from clients on a UDP port, or stop doing so
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    stopServer();
+                    continue;
+                }
+                int port;
+                int workers = DNSServer.DEFAULT_WORKERS;
+                try {
+                    if (commandArgs.length < 2 || commandArgs.length > 3)
+                        throw new IllegalArgumentException();
+                    port = Integer.parseInt(commandArgs[1]);
+                    if (commandArgs.length == 3)
+                        workers = Integer.parseInt(commandArgs[2]);
+                    if (port < 0 || port > 65535 || workers <= 0)
+                        throw new IllegalArgumentException();
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tserve port [workers]|off");
+                    continue;
+                }
+                startServer(port, workers);
+            } else if (commandArgs[0].equalsIgnoreCase("responses")) {
+                // RESPONSES: Change the number of encoded responses kept by the server mode, or stop keeping them
+                try {
+                    if (commandArgs.length != 2)
+                        throw new IllegalArgumentException();
+                    int size = commandArgs[1].equalsIgnoreCase("off") ? 0 : Integer.parseInt(commandArgs[1]);
+                    if (size < 0)
+                        throw new IllegalArgumentException();
+                    responseCacheSize = size;
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tresponses size|off");
+                    continue;
+                }
+                DNSServer current = server;
+                if (current != null)
+                    current.setResponseCacheSize(responseCacheSize);
+                System.out.println("Response cache is now: " + (responseCacheSize == 0 ? "OFF" : responseCacheSize + " questions"));
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print counters and latency statistics
+                printStats();
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, or only those under a domain
+                if (commandArgs.length == 1) {
+                    cache.forEachNode(DNSLookupService::printResults);
+                } else if (commandArgs.length == 2) {
+                    cache.forEachNodeUnder(commandArgs[1], DNSLookupService::printResults);
+                } else {
+                    System.err.println("Invalid call. Format:\n\tdump [domain]");
+                }
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
+                System.err.println("\tbatch file [type] [concurrency]");
+                System.err.println("\ttrace on|off|sample N|dump [count]");
+                System.err.println("\trace on|off");
+                System.err.println("\tedns size|off");
+                System.err.println("\tprefetch percent|off");
+                System.err.println("\tstale seconds|off");
                 System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tserve port [workers]|off");
+                System.err.println("\tresponses size|off");
+                System.err.println("\tstats");
+                System.err.println("\tdump [domain]");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        stopServer();
+        if (snapshotFile != null)
+            saveSnapshot();
+        tcp.close();
+        try {
+            engine.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Prepares the resolver to be used without the interactive interface
+     * (e.g., by benchmarks). Lookups start at the given root server, and all
+     * queries are sent to the given port.
+     *
+     * @param root Address of the root DNS server to start searches at.
+     * @param port Port all queries should be sent to.
+     * @throws IOException If the resolver engine could not be started.
+     */
+    static synchronized void init(InetAddress root, int port) throws IOException {
+        rootServer = root;
+        dnsPort = port;
+        if (engine == null)
+            engine = new ResolverEngine(encoder);
+        cache.setPrefetcher(DNSLookupService::refresh);
+    }
+
+    /**
+     * Finds all results for a specific node, as the lookup command does.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the query.
+     */
+    static Set<ResourceRecord> resolve(DNSNode node) {
+        return resolve(node, tracer.start(node));
+    }
+
+    /**
+     * Finds all results for a specific node, recording the lookup in the
+     * metrics and completing its trace.
+     *
+     * @param node  Host and record type to be used for search.
+     * @param trace Trace started for the lookup, or null if it is not traced.
+     * @return A set of resource records corresponding to the query.
+     */
+    private static Set<ResourceRecord> resolve(DNSNode node, LookupTrace trace) {
+        long start = System.nanoTime();
+        Set<ResourceRecord> results = Collections.emptySet();
+        try {
+            results = getResults(node, 0);
+            return results;
+        } finally {
+            metrics.recordLookup(System.nanoTime() - start, results.size());
+            tracer.finish(trace, results.size());
+        }
+    }
+
+    static void setRacing(boolean enabled) {
+        racing = enabled;
+    }
+
+    /**
+     * Starts answering DNS queries from clients on a UDP port, replacing the
+     * server currently running, if any.
+     *
+     * @param port    Port to listen on.
+     * @param workers Number of queries that may be handled at the same time.
+     */
+    private static void startServer(int port, int workers) {
+        stopServer();
+        try {
+            server = new DNSServer(port, workers, cache, DNSLookupService::resolve);
+            server.setResponseCacheSize(responseCacheSize);
+            System.out.println("Serving DNS queries on UDP port " + server.getPort() + " with " + workers + " workers.");
+        } catch (IOException e) {
+            System.err.println("Could not start server (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Stops answering DNS queries from clients, if a server is running.
+     */
+    private static void stopServer() {
+        if (server == null)
+            return;
+        try {
+            server.close();
+            System.out.println("Stopped serving DNS queries.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        server = null;
+    }
+
+    /**
+     * Restores the cache from the snapshot file, if it exists. Records that
+     * expired since the snapshot was written are not restored.
+     */
+    private static void loadSnapshot() {
+        if (!Files.exists(snapshotFile))
+            return;
+        try {
+            long start = System.nanoTime();
+            int records = CacheSnapshot.load(cache, snapshotFile);
+            System.out.printf("Restored %d cached records from %s in %d ms.\n", records, snapshotFile,
+                    (System.nanoTime() - start) / 1000000);
+        } catch (IOException e) {
+            System.err.println("Could not restore cache snapshot (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Saves the current contents of the cache to the snapshot file.
+     */
+    private static synchronized void saveSnapshot() {
+        try {
+            CacheSnapshot.write(cache, snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Collects the counters and statistics of the resolver, its cache, the
+     * server mode (if running) and each upstream server queried, under stable
+     * names. Latencies are in microseconds unless stated otherwise.
+     *
+     * @return The statistics, in a fixed order.
+     */
+    static Map<String, Number> collectStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        metrics.collect(stats);
+        if (engine != null) {
+            stats.put("retransmissions", engine.getRetransmissionCount());
+            stats.put("queryTimeouts", engine.getTimeoutCount());
+            stats.put("engineErrors", engine.getErrorCount());
+            stats.put("outstandingQueries", engine.getOutstandingCount());
+        }
+        stats.put("tcpQueries", tcp.getQueryCount());
+        stats.put("tcpConnections", tcp.getConnectionCount());
+        stats.put("coalescedLookups", inFlightLookups.getCoalescedCount());
+        stats.put("resolutions", inFlightLookups.getLeaderCount());
+        stats.put("resolutionsInFlight", inFlightLookups.getInFlightCount());
+
+        CacheStats cacheStats = cache.getStats();
+        stats.put("cache.hits", cacheStats.getHitCount());
+        stats.put("cache.misses", cacheStats.getMissCount());
+        stats.put("cache.hitRatio", cacheStats.getHitRatio());
+        stats.put("cache.negativeHits", cacheStats.getNegativeHitCount());
+        stats.put("cache.staleHits", cacheStats.getStaleHitCount());
+        stats.put("cache.evictions", cacheStats.getEvictionCount());
+        stats.put("cache.prefetches", cacheStats.getPrefetchCount());
+        stats.put("cache.usefulPrefetches", cacheStats.getUsefulPrefetchCount());
+        stats.put("cache.size", cacheStats.getSize());
+        stats.put("cache.negativeSize", cacheStats.getNegativeSize());
+
+        DNSServer current = server;
+        if (current != null) {
+            stats.put("server.queries", current.getQueryCount());
+            stats.put("server.failures", current.getFailureCount());
+            ResponseCache responses = current.getResponseCache();
+            if (responses != null) {
+                stats.put("server.responseCache.hits", responses.getHitCount());
+                stats.put("server.responseCache.misses", responses.getMissCount());
+                stats.put("server.responseCache.size", responses.size());
+            }
+        }
+
+        serverStats.forEachServer((address, summary) -> {
+            String prefix = "upstream." + address.getHostAddress() + ".";
+            stats.put(prefix + "srttMillis", summary.srtt);
+            stats.put(prefix + "rttvarMillis", summary.rttvar);
+            stats.put(prefix + "responses", summary.responses);
+            stats.put(prefix + "consecutiveFailures", summary.failures);
+        });
+        return stats;
+    }
+
+    /**
+     * Prints the statistics of the resolver (see collectStats) on the standard
+     * output.
+     */
+    private static void printStats() {
+        collectStats().forEach((name, value) -> {
+            if (value instanceof Double)
+                System.out.printf("%-45s %.3f\n", name, value.doubleValue());
+            else
+                System.out.printf("%-45s %d\n", name, value.longValue());
+        });
+    }
+
+    /**
+     * Makes the statistics of the resolver available to monitoring tools as
+     * the attributes of an MBean.
+     */
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new JmxStats(DNSLookupService::collectStats), new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            System.err.println("Could not register MBean (" + e.getMessage() + ").");
+        }
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard
      * output.
@@ -161,7 +549,80 @@ public class DNSLookupService {
     private static void findAndPrintResults(String hostName, RecordType type) {
 
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        LookupTrace trace = tracer.start(node);
+        Set<ResourceRecord> results = resolve(node, trace);
+        if (verboseTracing && trace != null)
+            trace.render(System.out);
+        printResults(node, results);
+    }
+
+    /**
+     * Finds all results for each host name listed in a file (one per line),
+     * printing them on the standard output as they complete, followed by the
+     * total time taken and the number of lookups completed per second.
+     *
+     * @param fileName    Name of the file listing the host names.
+     * @param type        Record type for all searches.
+     * @param concurrency Maximum number of lookups running at the same time.
+     */
+    private static void findAndPrintBatchResults(String fileName, RecordType type, int concurrency) {
+        List<String> hostNames = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                line = line.trim().split("#", 2)[0].trim();
+                if (!line.isEmpty())
+                    hostNames.add(line);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read file (" + e.getMessage() + ").");
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            lookupBatch(hostNames, type, concurrency, (node, results) -> {
+                synchronized (System.out) {
+                    printResults(node, results);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d lookups in %.3f s (%.1f QPS)\n", hostNames.size(), seconds,
+                hostNames.size() / seconds);
+    }
+
+    /**
+     * Finds all results for a list of host names concurrently, each on its own
+     * virtual thread. The consumer is invoked (from the thread that performed
+     * the lookup) as soon as the results of each host name are available, so
+     * it may be invoked concurrently. This method returns once all lookups
+     * are complete.
+     *
+     * @param hostNames   Fully qualified domain names of the hosts being searched.
+     * @param type        Record type for all searches.
+     * @param concurrency Maximum number of lookups running at the same time.
+     * @param consumer    Action to be performed with the results of each lookup.
+     * @throws InterruptedException If interrupted while waiting to start a lookup.
+     */
+    public static void lookupBatch(List<String> hostNames, RecordType type, int concurrency,
+                                   BiConsumer<DNSNode, Set<ResourceRecord>> consumer) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String hostName : hostNames) {
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        DNSNode node = new DNSNode(hostName, type);
+                        consumer.accept(node, resolve(node));
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
     }
 
     /**
@@ -188,12 +649,19 @@ public class DNSLookupService {
         Set<ResourceRecord> cached = cache.getCachedResults(node);
         if (cached.size() > 0) return cached;
 
+        // Look in cache if the name or type is known not to exist
+        if (cache.hasNegativeResult(node)) return Collections.emptySet();
+
         // Look in cache if has CNAME
         DNSNode alt = new DNSNode(node.getHostName(), RecordType.CNAME);
         Set<ResourceRecord> altNames = cache.getCachedResults(alt);
         // if has a CNAME, perform search starting from CNAME
         if (altNames.size() > 0) {
             for (ResourceRecord name : altNames) {
+                metrics.recordCNameHop();
+                LookupTrace trace = tracer.current();
+                if (trace != null)
+                    trace.cname(name.getTextResult());
                 DNSNode newNode = new DNSNode(name.getTextResult(), node.getType());
                 Set<ResourceRecord> altResults = getResults(newNode, ++indirectionLevel);
                 for (ResourceRecord result : altResults) {
@@ -206,20 +674,122 @@ public class DNSLookupService {
             }
         }
 
-        // Otherwise search was never done before and no CNAMES
-        // Get results starting at the root DNS server
-        retrieveResultsFromServer(node, rootServer);
+        // Otherwise search was never done before and no CNAMES. Concurrent
+        // searches for the same node share a single resolution.
+        final int level = indirectionLevel;
+        if (indirectionLevel > 0 || !cache.hasStaleResults(node))
+            return inFlightLookups.execute(node, () -> resolveFromServers(node, level));
+
+        // Expired records may be served if the resolution takes too long
+        // (RFC 8767), in which case it keeps running in the background to
+        // refresh the cache.
+        LookupTrace trace = tracer.current();
+        CompletableFuture<Set<ResourceRecord>> fresh = CompletableFuture.supplyAsync(() -> {
+            tracer.attach(trace);
+            return inFlightLookups.execute(node, () -> resolveFromServers(node, level));
+        }, background);
+        try {
+            return fresh.get(STALE_ANSWER_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Set<ResourceRecord> stale = cache.getStaleResults(node);
+            return stale.isEmpty() ? fresh.join() : stale;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return cache.getStaleResults(node);
+        } catch (ExecutionException e) {
+            return cache.getStaleResults(node);
+        }
+    }
+
+    /**
+     * Finds all the results for a specific node by querying DNS servers,
+     * starting at the name servers of the closest enclosing zone found in the
+     * cache, or at the root DNS server if there is none.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Current level of CNAME redirection (see
+     *                         getResults).
+     * @return A set of resource records corresponding to the specific query
+     *         requested.
+     */
+    private static Set<ResourceRecord> resolveFromServers(DNSNode node, int indirectionLevel) {
+        // Another search for this node may have completed just before this one started
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        if (cached.size() > 0 || cache.hasNegativeResult(node)) return cached;
+
+        return queryServers(node, indirectionLevel);
+    }
+
+    /**
+     * Resolves a node again even though it is still cached, so that popular
+     * records are replaced before they expire. Invoked by the cache on a
+     * background thread.
+     *
+     * @param node Host and record type to be refreshed.
+     */
+    private static void refresh(DNSNode node) {
+        String zone = getStartingZone(node);
+        retrieveResultsFromServer(node, getStartingServers(zone), zone, 0);
+
+        // Results obtained through a CNAME are still cached, so follow it in any case
+        followCNames(node, 0);
+    }
+
+    /**
+     * Queries DNS servers for a node regardless of its cached results (see
+     * resolveFromServers).
+     */
+    private static Set<ResourceRecord> queryServers(DNSNode node, int indirectionLevel) {
+        // If no server could answer, expired records are better than nothing
+        String zone = getStartingZone(node);
+        if (!retrieveResultsFromServer(node, getStartingServers(zone), zone, 0))
+            return cache.getStaleResults(node);
 
         // Check if there are answers
         Set<ResourceRecord> results = cache.getCachedResults(node);
         if (results.size() > 0) return results;
 
         // Otherwise there might be CNAMEs
+        return followCNames(node, indirectionLevel);
+    }
+
+    /**
+     * Returns the zone a search for a node should start at: the closest
+     * enclosing zone whose name servers are known, or the root zone (the
+     * empty name).
+     */
+    private static String getStartingZone(DNSNode node) {
+        String zone = cache.getClosestZone(node.getHostName());
+        return zone == null ? "" : zone;
+    }
+
+    /**
+     * Returns the servers a search should start at: the name servers of a
+     * zone returned by getStartingZone, or the root DNS server.
+     */
+    private static List<InetAddress> getStartingServers(String zone) {
+        List<InetAddress> servers = zone.isEmpty() ? Collections.emptyList() : cache.getClosestNameServers(zone);
+        if (servers.isEmpty())
+            return Collections.singletonList(rootServer);
+        return serverStats.rank(servers);
+    }
+
+    /**
+     * Resolves the canonical name of a node, if one is cached, and caches its
+     * results as results of the node itself.
+     *
+     * @return The results of the node, or an empty set if it has no CNAME.
+     */
+    private static Set<ResourceRecord> followCNames(DNSNode node, int indirectionLevel) {
         DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
         Set<ResourceRecord> cNames = cache.getCachedResults(cNameNode);
 
         for (ResourceRecord cNameRecord : cNames) {
             // Restart search with CNAME
+            metrics.recordCNameHop();
+            LookupTrace trace = tracer.current();
+            if (trace != null)
+                trace.cname(cNameRecord.getTextResult());
             DNSNode cName = new DNSNode(cNameRecord.getTextResult(), node.getType());
             Set<ResourceRecord> cNameResults = getResults(cName, ++indirectionLevel);
             for (ResourceRecord record : cNameResults) {
@@ -236,92 +806,176 @@ public class DNSLookupService {
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in
-     * iterative mode, and the query is repeated with a new server if the provided
-     * one is non-authoritative. Results are stored in the cache.
+     * Retrieves DNS results from a specified set of DNS servers. Queries are
+     * sent in iterative mode, and the query is repeated with new servers if
+     * the one that answered is non-authoritative. Results are stored in the
+     * cache.
+     *
+     * Name servers and addresses from the authority and additional sections
+     * are only cached if they belong to the zone of the servers that were
+     * asked (their bailiwick), since those servers could otherwise redirect
+     * later lookups of other zones to any server (RFC 2181, section 5.4.1).
+     * Referrals are only followed to zones below that zone, so a search
+     * cannot loop between servers.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers that may be used for the query,
+     *                best ranked first. Only the first one is used unless
+     *                racing is on.
+     * @param zone    Zone the servers are name servers of, or the empty name
+     *                for the root servers.
+     * @param referrals Number of referrals followed so far by this search.
+     * @return true if a final answer (possibly negative) was obtained, or
+     *         false if the servers could not be reached or did not answer.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
+    private static boolean retrieveResultsFromServer(DNSNode node, List<InetAddress> servers, String zone,
+                                                     int referrals) {
+        if (referrals > MAX_REFERRALS) {
+            System.err.println("Maximum number of referrals reached.");
+            return false;
+        }
         try {
-            // Send our query to the given DNS server
-            DNSResponse parsedResponse = new DNSResponse(
-                sendToDNS(node, server, DEFAULT_DNS_PORT, false)
-            );
+            // Send our query to the given DNS servers
+            byte[] response = sendToDNS(node, servers, dnsPort);
+            LookupTrace trace = tracer.current();
+            DNSResponse parsedResponse;
+            try {
+                parsedResponse = new DNSResponse(response);
+            } catch (IOException e) {
+                // Nothing from a malformed response can be trusted, as if no response was received
+                if (trace != null)
+                    trace.failure("Malformed response (" + e.getMessage() + ")");
+                return false;
+            }
 
             ArrayList<ResourceRecord> answers = parsedResponse.getAnswers();
-            ArrayList<ResourceRecord> nameServers = parsedResponse.getNameServers();
-            ArrayList<ResourceRecord> additionals = parsedResponse.getAdditionals();
+            ArrayList<ResourceRecord> nameServers = inBailiwick(parsedResponse.getNameServers(), zone, node.getHostName());
+            ArrayList<ResourceRecord> additionals = inBailiwick(parsedResponse.getAdditionals(), zone, null);
             boolean isAuthoritative = parsedResponse.getIsAuthoritative();
 
-            if (verboseTracing) {
-                System.out.print("Response ID: " + parsedResponse.getId());
-                System.out.print(" Authoritative: " + isAuthoritative + "\n");
-                System.out.println("  Answers (" + parsedResponse.getAnswers().size() + ")");
-                for (ResourceRecord r : answers) {
-                    verbosePrintResourceRecord(r, r.getType().getCode());
-                }
-                System.out.println("  Nameservers (" + parsedResponse.getNameServers().size() + ")");
-                for (ResourceRecord r : nameServers) {
-                    verbosePrintResourceRecord(r, r.getType().getCode());
-                }
-                System.out.println("  Additional Information (" + parsedResponse.getAdditionals().size() + ")");
-                for (ResourceRecord r : additionals) {
-                    verbosePrintResourceRecord(r, r.getType().getCode());
-                }
-            }
+            if (trace != null)
+                trace.response(parsedResponse);
 
             addAllToCache(answers);
             addAllToCache(parsedResponse.getCompressedAnswers());
             addAllToCache(nameServers);
             addAllToCache(additionals);
+            addNegativeResultToCache(node, parsedResponse);
 
             if (!isAuthoritative) {
                 // first look in additionals for potential answer
                 // should really only apply if we're looking for ip of NS
                 for (ResourceRecord add : additionals) {
                     DNSNode additional = new DNSNode(add.getHostName(), add.getType());
-                    if (additional.equals(node))
-                        return;
+                    if (additional.equals(node)) {
+                        metrics.recordReferralDepth(referrals);
+                        return true;
+                    }
                 }
-                if (nameServers.size() > 0) {
-                    ResourceRecord ns = getNextNameServer(nameServers, additionals);
-                    String next = ns.getTextResult();
-                    InetAddress ip = getAddress(next, additionals);
-                    if (ip != null) {
-                        retrieveResultsFromServer(node, ip);
+                ArrayList<ResourceRecord> referral = getReferral(nameServers, zone);
+                if (referral.size() > 0) {
+                    String nextZone = referral.get(0).getHostName();
+                    List<InetAddress> next = getNextNameServers(referral, additionals);
+                    if (!next.isEmpty()) {
+                        if (trace != null)
+                            trace.referral(next);
+                        return retrieveResultsFromServer(node, next, nextZone, referrals + 1);
                     } else /* need to look for ip of name server */ {
-                        DNSNode nameServer = new DNSNode(next, RecordType.A);
-                        Set<ResourceRecord> results = getResults(nameServer, 0);
-                        for (ResourceRecord record : results) {
-                            retrieveResultsFromServer(node, record.getInetResult());
-                            break;
-                        }
+                        DNSNode nameServer = new DNSNode(referral.get(0).getTextResult(), RecordType.A);
+                        if (trace != null)
+                            trace.unresolvedReferral(nameServer.getHostName());
+                        List<InetAddress> addresses = new ArrayList<>();
+                        for (ResourceRecord record : getResults(nameServer, 0))
+                            addresses.add(record.getInetResult());
+                        if (addresses.isEmpty())
+                            return false;
+                        return retrieveResultsFromServer(node, serverStats.rank(addresses), nextZone, referrals + 1);
                     }
                 }
+                if (answers.isEmpty() && !parsedResponse.getNameServers().isEmpty()) {
+                    // Referral to the same zone, to a zone above it or to another zone
+                    if (trace != null)
+                        trace.failure("Lame referral from " + (zone.isEmpty() ? "the root zone" : zone));
+                    return false;
+                }
             }
+            metrics.recordReferralDepth(referrals);
+            return true;
+        } catch (SocketTimeoutException e) {
+            LookupTrace trace = tracer.current();
+            if (trace != null)
+                trace.failure("Query timed out (" + e.getMessage() + ")");
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid query (" + e.getMessage() + ").");
         }
+        return false;
     }
 
     /**
-     * Returns the first name server that has an IP in additionals. If no
-     * such name server exists, return the first name server.
+     * Returns the records of a response section that the servers of a zone
+     * are trusted with: those whose owner is within the zone and, if a host
+     * name is given, encloses that host name (such as the NS records of a
+     * referral, or the SOA record of a negative answer).
+     *
+     * @param records  Records of the section.
+     * @param zone     Zone of the servers that sent the response.
+     * @param hostName Host name that was queried, or null to keep records of
+     *                 any name within the zone.
+     *
+     * @return The records kept, in their original order.
+     */
+    private static ArrayList<ResourceRecord> inBailiwick(ArrayList<ResourceRecord> records, String zone, String hostName) {
+        ArrayList<ResourceRecord> kept = new ArrayList<>(records.size());
+        for (ResourceRecord record : records) {
+            if (DNSNode.isInZone(record.getHostName(), zone)
+                    && (hostName == null || DNSNode.isInZone(hostName, record.getHostName())))
+                kept.add(record);
+        }
+        return kept;
+    }
+
+    /**
+     * Returns the NS records of a referral to a zone below a given zone, all
+     * for the same delegated zone. If the authority section holds name
+     * servers of several zones, the first one is used.
+     *
+     * @param nameServers Authority records within the bailiwick of the zone.
+     * @param zone        Zone of the servers that sent the referral.
+     *
+     * @return The NS records of the delegated zone, or an empty list if the
+     *         response is not a referral to a zone below the given zone.
+     */
+    private static ArrayList<ResourceRecord> getReferral(ArrayList<ResourceRecord> nameServers, String zone) {
+        ArrayList<ResourceRecord> referral = new ArrayList<>();
+        for (ResourceRecord ns : nameServers) {
+            if (ns.getType() != RecordType.NS || DNSNode.sameName(ns.getHostName(), zone))
+                continue;
+            if (referral.isEmpty() || DNSNode.sameName(ns.getHostName(), referral.get(0).getHostName()))
+                referral.add(ns);
+        }
+        return referral;
+    }
+
+    /**
+     * Returns the addresses of all name servers that have an IP in
+     * additionals, ranked by their round-trip time statistics (fastest
+     * first). If no such name server exists, returns an empty list.
      *
      * @param nameServers   List of name servers parsed from response
      * @param adds          List of additional information parsed 
      *                      from response
      * 
-     * @return ResourceRecord containing information about the name server.
+     * @return Addresses of the name servers, best ranked first.
      */
-    private static ResourceRecord getNextNameServer(ArrayList<ResourceRecord> nameServers, ArrayList<ResourceRecord> adds) {
+    private static List<InetAddress> getNextNameServers(ArrayList<ResourceRecord> nameServers, ArrayList<ResourceRecord> adds) {
+        List<InetAddress> addresses = new ArrayList<>();
         for (ResourceRecord ns : nameServers) {
             InetAddress ip = getAddress(ns.getTextResult(), adds);
-            if (ip != null) return ns;
+            if (ip != null && !addresses.contains(ip)) addresses.add(ip);
         }
-        return nameServers.get(0);
+        return serverStats.rank(addresses);
     }
 
     /**
@@ -341,6 +995,24 @@ public class DNSLookupService {
         return null;
     }
 
+    /**
+     * Caches the negative answer contained in a response, if any (RFC 2308).
+     * An authoritative response with no answers and an SOA record in the
+     * authority section is either a name error (NXDOMAIN), cached for the
+     * host name, or a NODATA answer, cached for the host name and type.
+     *
+     * @param node     Host name and record type used for the query.
+     * @param response Response received for the query.
+     */
+    private static void addNegativeResultToCache(DNSNode node, DNSResponse response) {
+        if (!response.getIsAuthoritative() || !response.getAnswers().isEmpty() || response.getNegativeTTL() < 0)
+            return;
+        if (response.getRcode() == DNSResponse.RCODE_NXDOMAIN)
+            cache.addNameError(node.getHostName(), response.getNegativeTTL());
+        else if (response.getRcode() == DNSResponse.RCODE_NOERROR)
+            cache.addNoData(node, response.getNegativeTTL());
+    }
+
     private static void addAllToCache(ArrayList<ResourceRecord> input) {
         for (ResourceRecord r : input) {
             cache.addResult(r);
@@ -348,80 +1020,69 @@ public class DNSLookupService {
     }
 
     /**
-     * Sends a DNS request frame based on the given node to the given DNS
-     * server address and port.
+     * Sends a DNS request frame based on the given node to the first of the
+     * given DNS servers, and waits for a matching response. The query is
+     * retransmitted if no response is received within a timeout computed
+     * from the server's round-trip time statistics, with exponential
+     * backoff. If racing is on and the first server does not answer within a
+     * short delay (also based on its statistics), the query is also sent to
+     * the next server, and so on; the first usable response is returned. If
+     * that response is truncated, the query is sent again to the same server
+     * over TCP.
      *
      * @param node    Host name and record type to be used for the query.
-     * @param address Address of the server to be used for the query.
+     * @param servers Addresses of the servers to be used for the query, best
+     *                ranked first.
      * @param port    Port the query should be sent to.
-     * @param wasSent Boolean to check if sendToDNS was called before.
      * 
      * @return A byte array consisting of the response data.
+     * @throws SocketTimeoutException If no server sent a response.
      */
-    private static byte[] sendToDNS(DNSNode node, InetAddress address, int port, boolean wasSent) throws IOException {
-        ByteArrayOutputStream bytearrayOS = new ByteArrayOutputStream();
-        DataOutputStream dataOS = new DataOutputStream(bytearrayOS);
-
-        // Transaction ID
-        int id = random.nextInt(65535) & 0x00FFFF;
-        dataOS.writeShort(id);
-        // Flags
-        dataOS.writeShort(0x0000);
-        // # Questions
-        dataOS.writeShort(0x0001);
-        // # Answers (Should be 0 since we're querying)
-        dataOS.writeShort(0x0000);
-        // # Authorities (Should be 0 since we're querying)
-        dataOS.writeShort(0x0000);
-        // # Additionals (Should be 0 since we're querying)
-        dataOS.writeShort(0x0000);
-
-        String[] domainParts = node.getHostName().split("\\.");
-
-        for (int i = 0; i < domainParts.length; i++) {
-            byte[] domainBytes = domainParts[i].getBytes("UTF-8");
-            dataOS.writeByte(domainBytes.length);
-            dataOS.write(domainBytes);
-        }
-
-        // No more parts
-        dataOS.writeByte(0x00);
-        // Query type
-        dataOS.writeShort(node.getType().getCode());
-        // Class 0x01 = IN
-        dataOS.writeShort(0x0001);
-
-        byte[] dnsFrame = bytearrayOS.toByteArray();
+    private static byte[] sendToDNS(DNSNode node, List<InetAddress> servers, int port) throws IOException {
+        List<InetAddress> candidates = racing ? servers : servers.subList(0, 1);
+        // Later queries of the race are sent from other threads, so the trace is captured here
+        LookupTrace trace = tracer.current();
+        StaggeredQuery race = new StaggeredQuery(engine, node, candidates, port, serverStats,
+                QUERY_RETRIES, query -> {
+            metrics.recordQuerySent();
+            if (trace != null)
+                trace.query(query);
+        });
 
-        if (verboseTracing) {
-            System.out.print("\n\nQuery ID:    " + id + " " + node.getHostName() + "  " + node.getType() + " --> " + address.getHostAddress() + "\n");
-        }
-
-        // Send DNS request frame
-        DatagramPacket dnsReqPacket = new DatagramPacket(dnsFrame, dnsFrame.length, address, port);
-        socket.send(dnsReqPacket);
-
-        // Await DNS frame
-        byte[] buf = new byte[1024];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            socket.receive(packet);
-        } catch (SocketTimeoutException se) {
-            // Resend the same packet ONCE only
-            if (!wasSent) {
-                sendToDNS(node, address, port, true);
-            } else {
-                // Was sent before, return empty buffer array
-                return buf;
+            DNSQuery winner = race.start().join();
+            byte[] response = winner.join();
+            if (trace != null)
+                trace.answered(winner.getServer(), System.nanoTime() - start);
+            if (isTruncated(response)) {
+                if (trace != null)
+                    trace.tcpRetry(winner.getServer());
+                metrics.recordTcpFallback();
+                response = tcp.query(node, winner.getServer(), TCP_TIMEOUT_MILLIS).join();
             }
+            succeeded = true;
+            return response;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof IllegalArgumentException)
+                throw (IllegalArgumentException) e.getCause();
+            if (e.getCause() instanceof TimeoutException)
+                throw new SocketTimeoutException("No response over TCP");
+            throw e;
+        } finally {
+            metrics.recordExchange(System.nanoTime() - start, succeeded);
         }
-        return buf;
     }
 
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(), record.getTextResult());
+    /**
+     * Returns true if the TC (truncation) bit is set in the header of a
+     * response, meaning that the response did not fit in a UDP message.
+     */
+    private static boolean isTruncated(byte[] response) {
+        return response.length > 2 && (response[2] & 0x02) != 0;
     }
 
     /**
@@ -0,0 +1,322 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cursor over the wire format of a DNS message stored in a ByteBuffer. The
+ * header is decoded when the reader is reset, after which each call to next()
+ * moves the cursor to the following question or resource record, in a single
+ * pass over the message. Record fields are read directly from the buffer; names
+ * are kept as offsets and only turned into strings when requested.
+ * 
+ * A reader is not thread-safe, but can be reused for any number of messages:
+ * it does not allocate anything while decoding, except for the strings
+ * returned by getName. Names can also be compared with a known name with
+ * nameEquals, without creating a string.
+ */
+class DNSMessageReader {
+
+	static final int HEADER_LENGTH = 12;
+
+	static final int SECTION_QUESTION = 0;
+	static final int SECTION_ANSWER = 1;
+	static final int SECTION_AUTHORITY = 2;
+	static final int SECTION_ADDITIONAL = 3;
+
+	// Pseudo-record carrying EDNS0 options (RFC 6891), not an actual resource record
+	static final int TYPE_OPT = 41;
+
+	private static final int POINTER_MASK = 0b11000000;
+	private static final int MAX_NAME_LENGTH = 255;
+	// A valid name has at most 127 labels, so following more pointers implies a loop
+	private static final int MAX_POINTERS = 127;
+	private static final int NAME_MEMO_SIZE = 32;
+
+	private ByteBuffer buffer;
+	private int base;
+	private int limit;
+	private int position;
+
+	private int id;
+	private int flags;
+	private final int[] sectionCounts = new int[4];
+
+	private int section;
+	private int remainingInSection;
+
+	private int nameOffset;
+	private int type;
+	private int recordClass;
+	private long ttl;
+	private int rdataOffset;
+	private int rdataLength;
+
+	private final char[] nameChars = new char[MAX_NAME_LENGTH];
+	private final int[] memoOffsets = new int[NAME_MEMO_SIZE];
+	private final String[] memoNames = new String[NAME_MEMO_SIZE];
+
+	/**
+	 * Starts reading a new message, decoding its header. The message spans from
+	 * the buffer's position to its limit; offsets used by this reader are relative
+	 * to the buffer's position at the time of this call.
+	 * 
+	 * @param message Buffer containing the message.
+	 * @throws IOException If the message is too short to contain a header.
+	 */
+	void reset(ByteBuffer message) throws IOException {
+		this.buffer = message;
+		this.base = message.position();
+		this.limit = message.remaining();
+		if (limit < HEADER_LENGTH)
+			throw new IOException("Malformed DNS message: truncated header");
+
+		id = u16(0);
+		flags = u16(2);
+		for (int i = 0; i < 4; i++)
+			sectionCounts[i] = u16(4 + 2 * i);
+
+		position = HEADER_LENGTH;
+		section = SECTION_QUESTION;
+		remainingInSection = sectionCounts[SECTION_QUESTION];
+		Arrays.fill(memoOffsets, -1);
+		Arrays.fill(memoNames, null);
+	}
+
+	int getId() {
+		return id;
+	}
+
+	int getFlags() {
+		return flags;
+	}
+
+	boolean isAuthoritative() {
+		return (flags & 0x0400) != 0;
+	}
+
+	boolean isTruncated() {
+		return (flags & 0x0200) != 0;
+	}
+
+	int getRcode() {
+		return flags & 0x000F;
+	}
+
+	int getCount(int section) {
+		return sectionCounts[section];
+	}
+
+	/**
+	 * Moves the cursor to the next question or resource record in the message.
+	 * 
+	 * @return true if the cursor points to a new entry, false if all entries were
+	 *         read.
+	 * @throws IOException If the entry extends past the end of the message.
+	 */
+	boolean next() throws IOException {
+		while (remainingInSection == 0) {
+			if (section == SECTION_ADDITIONAL)
+				return false;
+			section++;
+			remainingInSection = sectionCounts[section];
+		}
+		remainingInSection--;
+
+		nameOffset = position;
+		position = skipName(position);
+		type = u16(position);
+		recordClass = u16(position + 2);
+		position += 4;
+
+		if (section == SECTION_QUESTION) {
+			ttl = 0;
+			rdataOffset = position;
+			rdataLength = 0;
+		} else {
+			ttl = u32(position);
+			rdataLength = u16(position + 4);
+			rdataOffset = position + 6;
+			position = rdataOffset + rdataLength;
+			if (position > limit)
+				throw new IOException("Malformed DNS message: record data past end of message");
+		}
+		return true;
+	}
+
+	int getSection() {
+		return section;
+	}
+
+	int getNameOffset() {
+		return nameOffset;
+	}
+
+	int getType() {
+		return type;
+	}
+
+	int getRecordClass() {
+		return recordClass;
+	}
+
+	long getTTL() {
+		return ttl;
+	}
+
+	int getRDataOffset() {
+		return rdataOffset;
+	}
+
+	int getRDataLength() {
+		return rdataLength;
+	}
+
+	/**
+	 * Copies the record data of the current record into an array.
+	 * 
+	 * @param destination Array with at least getRDataLength() bytes.
+	 */
+	void getRData(byte[] destination) {
+		buffer.get(base + rdataOffset, destination, 0, rdataLength);
+	}
+
+	/**
+	 * Returns the domain name that starts at a specific offset, following
+	 * compression pointers as needed. Names that are the target of a compression
+	 * pointer are memoized, so repeated references to the same name in a message
+	 * share a single string.
+	 * 
+	 * @param offset Offset of the name relative to the start of the message.
+	 * @return The domain name, with labels separated by dots and no trailing dot.
+	 * @throws IOException If the name is malformed, too long, or loops.
+	 */
+	String getName(int offset) throws IOException {
+		int start = offset;
+		int pointers = 0;
+		while (isPointer(u8(start))) {
+			if (++pointers > MAX_POINTERS)
+				throw new IOException("Malformed DNS message: compression loop");
+			start = pointerTarget(start);
+		}
+
+		int slot = start & (NAME_MEMO_SIZE - 1);
+		if (memoOffsets[slot] == start)
+			return memoNames[slot];
+
+		int length = 0;
+		int idx = start;
+		int labelLength = u8(idx);
+		while (labelLength != 0) {
+			if (isPointer(labelLength)) {
+				if (++pointers > MAX_POINTERS)
+					throw new IOException("Malformed DNS message: compression loop");
+				idx = pointerTarget(idx);
+			} else if ((labelLength & POINTER_MASK) != 0) {
+				throw new IOException("Malformed DNS message: unsupported label type");
+			} else {
+				if (length + labelLength + 1 > MAX_NAME_LENGTH)
+					throw new IOException("Malformed DNS message: name too long");
+				if (length > 0)
+					nameChars[length++] = '.';
+				for (int i = 1; i <= labelLength; i++)
+					nameChars[length++] = (char) u8(idx + i);
+				idx += labelLength + 1;
+			}
+			labelLength = u8(idx);
+		}
+
+		String name = new String(nameChars, 0, length);
+		memoOffsets[slot] = start;
+		memoNames[slot] = name;
+		return name;
+	}
+
+	/**
+	 * Returns true if the domain name that starts at a specific offset is equal to
+	 * a name in wire format (see DNSNode.getKey), following compression pointers
+	 * as needed. ASCII letters in the message are compared ignoring case.
+	 * 
+	 * @param offset Offset of the name relative to the start of the message.
+	 * @param key    Name in wire format, with ASCII letters in lower case, or null
+	 *               for a name that cannot appear in a message.
+	 * @return true if both names are equal.
+	 * @throws IOException If the name is malformed or loops.
+	 */
+	boolean nameEquals(int offset, byte[] key) throws IOException {
+		if (key == null)
+			return false;
+		int idx = offset;
+		int pointers = 0;
+		int keyIndex = 0;
+		while (true) {
+			int labelLength = u8(idx);
+			if (isPointer(labelLength)) {
+				if (++pointers > MAX_POINTERS)
+					throw new IOException("Malformed DNS message: compression loop");
+				idx = pointerTarget(idx);
+				continue;
+			}
+			if ((labelLength & POINTER_MASK) != 0)
+				throw new IOException("Malformed DNS message: unsupported label type");
+			if (keyIndex >= key.length || key[keyIndex] != labelLength)
+				return false;
+			if (labelLength == 0)
+				return true;
+			for (int i = 1; i <= labelLength; i++) {
+				int c = u8(idx + i);
+				if (c >= 'A' && c <= 'Z')
+					c += 'a' - 'A';
+				if (c != (key[keyIndex + i] & 0xFF))
+					return false;
+			}
+			idx += labelLength + 1;
+			keyIndex += labelLength + 1;
+		}
+	}
+
+	/**
+	 * Returns the offset right after the name that starts at a specific offset,
+	 * without following compression pointers.
+	 */
+	int skipName(int offset) throws IOException {
+		int idx = offset;
+		while (true) {
+			int labelLength = u8(idx);
+			if (labelLength == 0)
+				return idx + 1;
+			if (isPointer(labelLength))
+				return idx + 2;
+			if ((labelLength & POINTER_MASK) != 0)
+				throw new IOException("Malformed DNS message: unsupported label type");
+			idx += labelLength + 1;
+		}
+	}
+
+	int u8(int offset) throws IOException {
+		if (offset >= limit)
+			throw new IOException("Malformed DNS message: read past end of message");
+		return buffer.get(base + offset) & 0xFF;
+	}
+
+	int u16(int offset) throws IOException {
+		if (offset + 2 > limit)
+			throw new IOException("Malformed DNS message: read past end of message");
+		return buffer.getShort(base + offset) & 0xFFFF;
+	}
+
+	long u32(int offset) throws IOException {
+		if (offset + 4 > limit)
+			throw new IOException("Malformed DNS message: read past end of message");
+		return buffer.getInt(base + offset) & 0xFFFFFFFFL;
+	}
+
+	private boolean isPointer(int labelLength) {
+		return (labelLength & POINTER_MASK) == POINTER_MASK;
+	}
+
+	private int pointerTarget(int offset) throws IOException {
+		return u16(offset) & 0x3FFF;
+	}
+}
@@ -4,16 +4,34 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. Host names are
+ * compared in their canonical form, as they appear in DNS messages: ASCII letters are compared
+ * ignoring case (RFC 4343), and a trailing dot is ignored, so equality and hashing agree with the
+ * ordering used by compareTo. The hash of a node is computed once, when the node is created.
+ *
+ * A node also provides its host name in wire format, with ASCII letters in lower case (see
+ * getKey), which DNSMessageReader.nameEquals compares with names in a message without
+ * decoding them.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final byte[] NO_KEY = new byte[0];
+
     private String hostName;
     private RecordType type;
+    private int hash;
+    private transient byte[] key;
 
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
         this.type = type;
+        int result = 0;
+        for (int i = 0; i < nameLength(hostName); i++)
+            result = 31 * result + toLowerCase(hostName.charAt(i));
+        // The ordinal, unlike the identity hash of the type, is the same in every JVM
+        this.hash = 31 * result + type.ordinal();
     }
 
     public String getHostName() {
@@ -24,6 +42,98 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
         return type;
     }
 
+    /** Returns the host name in wire format (a sequence of labels, each preceded by its length,
+     * and ending with the empty root label), with ASCII letters in lower case. The key is built
+     * the first time it is requested.
+     *
+     * @return The host name in wire format, or null if the host name cannot be encoded (e.g.,
+     * because it has an empty label, a label or name that is too long, or characters that
+     * do not fit in a byte).
+     */
+    byte[] getKey() {
+        byte[] key = this.key;
+        if (key == null) {
+            key = encode(hostName);
+            this.key = key;
+        }
+        return key == NO_KEY ? null : key;
+    }
+
+    /** Returns a host name in wire format, as getKey does for the host name of a node, for names
+     * that are not the host name of a node (e.g., the target of a CNAME record).
+     *
+     * @param hostName Host name to be encoded.
+     * @return The host name in wire format, or null if the host name cannot be encoded.
+     */
+    static byte[] toKey(String hostName) {
+        byte[] key = encode(hostName);
+        return key == NO_KEY ? null : key;
+    }
+
+    private static byte[] encode(String hostName) {
+        int length = nameLength(hostName);
+        if (length + 2 > MAX_NAME_LENGTH)
+            return NO_KEY;
+        byte[] key = new byte[length == 0 ? 1 : length + 2];
+        int start = 0;
+        while (start < length) {
+            int end = hostName.indexOf('.', start);
+            if (end < 0)
+                end = length;
+            if (end == start || end - start > MAX_LABEL_LENGTH)
+                return NO_KEY;
+            key[start] = (byte) (end - start);
+            for (int i = start; i < end; i++) {
+                char c = toLowerCase(hostName.charAt(i));
+                if (c > 0xFF)
+                    return NO_KEY;
+                key[i + 1] = (byte) c;
+            }
+            start = end + 1;
+        }
+        return key;
+    }
+
+    /** Returns true if two host names are equal in their canonical form, i.e., ignoring the
+     * case of ASCII letters and a trailing dot.
+     */
+    static boolean sameName(String name, String other) {
+        // Names usually have the same case, which String.equals checks much faster
+        if (name == other || name.equals(other))
+            return true;
+        int length = nameLength(name);
+        return length == nameLength(other) && regionMatches(name, 0, other, 0, length);
+    }
+
+    /** Returns true if two parts of host names are equal, ignoring the case of ASCII letters. */
+    static boolean regionMatches(String name, int start, String other, int otherStart, int length) {
+        for (int i = 0; i < length; i++)
+            if (toLowerCase(name.charAt(start + i)) != toLowerCase(other.charAt(otherStart + i)))
+                return false;
+        return true;
+    }
+
+    /** Returns true if a host name is a zone or one of its subdomains, in their canonical form.
+     * Every name is in the root zone (the empty name).
+     */
+    static boolean isInZone(String name, String zone) {
+        int length = nameLength(name);
+        int zoneLength = nameLength(zone);
+        if (zoneLength == 0)
+            return true;
+        int start = length - zoneLength;
+        return start >= 0 && (start == 0 || name.charAt(start - 1) == '.')
+                && regionMatches(name, start, zone, 0, zoneLength);
+    }
+
+    static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int nameLength(String name) {
+        return name.endsWith(".") ? name.length() - 1 : name.length();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -31,15 +141,13 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        if (hash != dnsNode.hash || type != dnsNode.type) return false;
+        return sameName(hostName, dnsNode.hostName);
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
+        return hash;
     }
 
     @Override
@@ -49,8 +157,16 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        int length = nameLength(hostName);
+        int otherLength = nameLength(o.hostName);
+        for (int i = 0; i < Math.min(length, otherLength); i++) {
+            char c = toLowerCase(hostName.charAt(i));
+            char other = toLowerCase(o.hostName.charAt(i));
+            if (c != other)
+                return c - other;
+        }
+        if (length != otherLength)
+            return length - otherLength;
         else
             return type.compareTo(o.type);
     }
@@ -0,0 +1,103 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/** A query sent (or about to be sent) by the resolver engine. The query is a future that is
+ * completed with the raw response message once a matching response is received, or
+ * exceptionally with a SocketTimeoutException once all retransmissions timed out. Cancelling
+ * the future stops further retransmissions.
+ *
+ * Dependent actions registered without an executor run on the engine's event loop thread, and
+ * must therefore not block.
+ */
+class DNSQuery extends CompletableFuture<byte[]> {
+
+    private final int id;
+    private final DNSNode node;
+    private final InetSocketAddress server;
+
+    private long timeoutMillis;
+    private int remainingRetries;
+    private boolean retransmitted = false;
+    private long deadline;
+    private volatile long sentAt;
+    private volatile long receivedAt;
+
+    DNSQuery(int id, DNSNode node, InetSocketAddress server, long timeoutMillis, int retries) {
+        this.id = id;
+        this.node = node;
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.remainingRetries = retries;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    DNSNode getNode() {
+        return node;
+    }
+
+    InetSocketAddress getServer() {
+        return server;
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    int getRemainingRetries() {
+        return remainingRetries;
+    }
+
+    /** Uses one of the remaining retries, doubling the timeout (exponential backoff) up to a
+     * maximum.
+     *
+     * @param maxTimeoutMillis Maximum timeout after backoff.
+     */
+    void consumeRetry(long maxTimeoutMillis) {
+        remainingRetries--;
+        retransmitted = true;
+        timeoutMillis = Math.min(maxTimeoutMillis, timeoutMillis * 2);
+    }
+
+    /** Returns true if the query was transmitted more than once. The round-trip time of such a
+     * query is ambiguous, as the response may answer any of the transmissions (Karn's algorithm).
+     *
+     * @return true if the query was retransmitted.
+     */
+    boolean isRetransmitted() {
+        return retransmitted;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    long getSentAt() {
+        return sentAt;
+    }
+
+    /** Time elapsed between the last transmission of the query and its response.
+     *
+     * @return Round-trip time in milliseconds, or -1 if no response was received.
+     */
+    long getRtt() {
+        return receivedAt == 0 ? -1 : receivedAt - sentAt;
+    }
+
+    void received(long now) {
+        this.receivedAt = now;
+    }
+
+    /** Records that the query was (re)transmitted, and computes the deadline for a response.
+     *
+     * @param now Time of the transmission, in milliseconds.
+     */
+    void sent(long now) {
+        this.sentAt = now;
+        this.deadline = now + timeoutMillis;
+    }
+}
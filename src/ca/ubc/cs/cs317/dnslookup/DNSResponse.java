@@ -1,12 +1,8 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import ca.ubc.cs.cs317.dnslookup.RecordType;
 import java.nio.ByteBuffer;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.net.InetAddress;
@@ -14,19 +10,23 @@ import java.net.InetAddress;
 /**
  * The DNSResponse class corresponds to an entire result returned by a DNS
  * response. The constructor takes in the hexadecimal byte array and provides
- * getters for the different data contained in the DNS response.
+ * getters for the different data contained in the DNS response. The message
+ * is decoded in a single pass by a DNSMessageReader.
  */
 public class DNSResponse {
 
-	private DataInputStream data;
-	private byte[] byteData;
+	public static final int RCODE_NOERROR = 0;
+	public static final int RCODE_SERVFAIL = 2;
+	public static final int RCODE_NXDOMAIN = 3;
 
-	private HashMap<Integer, String> domains = new HashMap<Integer, String>();
-
-	private int POINTER_MASK = 0b11000000;
+	private static final ThreadLocal<DNSMessageReader> READER = ThreadLocal.withInitial(DNSMessageReader::new);
 
 	private int id;
 	private boolean isAuthoritative = false;
+	private boolean isTruncated = false;
+	private int ednsPayloadSize = 0;
+	private int rcode = RCODE_NOERROR;
+	private long negativeTTL = -1;
 
 	public ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
 	public ArrayList<ResourceRecord> compressedAnswers = new ArrayList<ResourceRecord>();
@@ -34,16 +34,21 @@ public class DNSResponse {
 	public ArrayList<ResourceRecord> additionals = new ArrayList<ResourceRecord>();
 
 	/* Constructors and getters */
-	public DNSResponse(byte[] data) {
-		this.data = new DataInputStream(new ByteArrayInputStream(data));
-		this.byteData = data;
-		if (data.length > 0) {
-			try {
-				parseResponse();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+	public DNSResponse(byte[] data) throws IOException {
+		this(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Decodes a response message. An empty message is decoded as a response
+	 * with no records.
+	 *
+	 * @param data Buffer holding the message between its position and its limit.
+	 * @throws IOException If the message is malformed (e.g., truncated or with
+	 *                     a compression pointer out of bounds).
+	 */
+	public DNSResponse(ByteBuffer data) throws IOException {
+		if (data.hasRemaining())
+			parseResponse(data);
 	}
 
 	public ArrayList<ResourceRecord> getAnswers() {
@@ -70,187 +75,133 @@ public class DNSResponse {
 		return this.isAuthoritative;
 	}
 
+	public boolean getIsTruncated() {
+		return this.isTruncated;
+	}
+
 	/**
-	 * Populates the answers, compressedAnswers, nameServers and additionals fields
-	 * based on the byte array that is passed to the constructor.
+	 * Returns the UDP payload size advertised by the sender of this message in
+	 * an EDNS0 OPT record.
+	 * 
+	 * @return The advertised payload size, or 0 if the message has no OPT
+	 *         record.
 	 */
-	private void parseResponse() throws IOException {
-		id = data.readShort() & 0x00FFFF;
-
-		int flag = data.readByte();
-		isAuthoritative = ((flag >> 2) & 1) == 1;
-		data.readByte(); // rest of flags
-
-		int numQuestions = data.readShort();
-		int numAnswers = data.readShort();
-		int numAuths = data.readShort();
-		int numAdds = data.readShort();
+	public int getEdnsPayloadSize() {
+		return this.ednsPayloadSize;
+	}
 
-		for (int i = 0; i < numQuestions; i++) {
-			getDomainName();
-			data.readShort(); // question type
-			data.readShort(); // question class
-		}
-		parseData(numAnswers, answers);
-		compressAnswers();
-		parseData(numAuths, nameServers);
-		parseData(numAdds, additionals);
+	public int getRcode() {
+		return this.rcode;
 	}
 
 	/**
-	 * Populates the result array with data based on the byte array and
-	 * the number of data blocks to expect.
+	 * Returns the TTL for caching a negative answer (NXDOMAIN or NODATA) from
+	 * this response, following RFC 2308: the minimum of the TTL of the SOA
+	 * record in the authority section and the SOA MINIMUM field.
 	 * 
-	 * @param numData	Number of data 'blocks' to parse
-	 * @param result	The list to populate with resource records
+	 * @return The negative caching TTL in seconds, or -1 if the authority
+	 *         section has no SOA record (in which case the negative answer
+	 *         should not be cached).
+	 */
+	public long getNegativeTTL() {
+		return this.negativeTTL;
+	}
+
+	/**
+	 * Populates the answers, compressedAnswers, nameServers and additionals fields
+	 * based on the message passed to the constructor.
 	 */
-	private void parseData(int numData, ArrayList<ResourceRecord> result) throws IOException {
-		for (int i = 0; i < numData; i++) {
-			ResourceRecord record = parseToResourceRecord();
-			result.add(record);
+	private void parseResponse(ByteBuffer data) throws IOException {
+		DNSMessageReader reader = READER.get();
+		reader.reset(data);
+
+		id = reader.getId();
+		isAuthoritative = reader.isAuthoritative();
+		isTruncated = reader.isTruncated();
+		rcode = reader.getRcode();
+
+		while (reader.next()) {
+			switch (reader.getSection()) {
+				case DNSMessageReader.SECTION_ANSWER:
+					answers.add(parseToResourceRecord(reader));
+					break;
+				case DNSMessageReader.SECTION_AUTHORITY:
+					nameServers.add(parseToResourceRecord(reader));
+					if (reader.getType() == RecordType.SOA.getCode() && negativeTTL < 0)
+						negativeTTL = Math.min(getTTL(reader), getSOAMinimum(reader));
+					break;
+				case DNSMessageReader.SECTION_ADDITIONAL:
+					if (reader.getType() == DNSMessageReader.TYPE_OPT)
+						ednsPayloadSize = reader.getRecordClass();
+					else
+						additionals.add(parseToResourceRecord(reader));
+					break;
+				default:
+					// questions are not kept
+					break;
+			}
 		}
+		compressAnswers();
 	}
 
 	/**
-	 * Parses the next block of data available into a resource record.
+	 * Converts the record the reader currently points to into a resource record.
 	 * 
-	 * @return	A ResourceRecord containing information from the next
-	 * 			block of data.
+	 * @param reader Reader positioned on a record of the answer, authority or
+	 *               additional section.
+	 * @return A ResourceRecord containing information from the record.
 	 */
-	private ResourceRecord parseToResourceRecord() throws IOException {
-		String host = "";
-		RecordType type = null;
-		long ttl = 0;
-		String result = "";
-		InetAddress ip = null;
-
-		host = getDomainName();
-
-		type = RecordType.getByCode(data.readShort());
-		data.readShort(); // response class
-		ttl = data.readInt();
-
-		int length = data.readShort();
+	private ResourceRecord parseToResourceRecord(DNSMessageReader reader) throws IOException {
+		String host = reader.getName(reader.getNameOffset());
+		RecordType type = RecordType.getByCode(reader.getType());
+		long ttl = getTTL(reader);
+		int length = reader.getRDataLength();
 
 		switch (type) {
-			// IPv4 address
+			// IP addresses
 			case A:
-				byte[] addr4 = new byte[length];
-				for (int i = 0; i < length; i++) {
-					addr4[i] = data.readByte();
-				}
-				ip = InetAddress.getByAddress(host, addr4);
-				break;
-			// IPv6 address
 			case AAAA:
-				byte[] addr6 = new byte[16];
-				for (int i = 0; i < 16; i++) {
-					addr6[i] = data.readByte();
-				}
-				ip = InetAddress.getByAddress(host, addr6);
-				break;
+				if (length != (type == RecordType.A ? 4 : 16))
+					throw new IOException("Malformed DNS message: invalid address length " + length);
+				byte[] addr = new byte[length];
+				reader.getRData(addr);
+				return new ResourceRecord(host, type, ttl, InetAddress.getByAddress(host, addr));
 			// domain names
 			case NS:
 			case CNAME:
-				result = getDomainName();
-				break;
+				return new ResourceRecord(host, type, ttl, reader.getName(reader.getRDataOffset()));
+			// zone authority: MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM
+			case SOA:
+				int mname = reader.getRDataOffset();
+				int rname = reader.skipName(mname);
+				int serial = reader.skipName(rname);
+				StringBuilder soa = new StringBuilder(64)
+						.append(reader.getName(mname)).append(' ').append(reader.getName(rname));
+				for (int i = 0; i < 5; i++)
+					soa.append(' ').append(reader.u32(serial + 4 * i));
+				return new ResourceRecord(host, type, ttl, soa.toString());
 			// if any other type, do nothing
 			default:
-				result = "---";
-				break;
-		}
-
-		ResourceRecord record;
-		if (ip != null) {
-			record = new ResourceRecord(host, type, ttl, ip);
-		} else {
-			record = new ResourceRecord(host, type, ttl, result);
+				return new ResourceRecord(host, type, ttl, "---");
 		}
-		return record;
 	}
 
 	/**
-	 * Parses the next block of data into a domain name.
-	 * Note: Expects the next block of data to be in a format
-	 * 		 where it is possible to parse a domain from.
-	 * 
-	 * @return	The parsed domain name.
-	 * @throws IOException
+	 * Returns the TTL of the record the reader currently points to. TTLs with
+	 * the most significant bit set are treated as zero (RFC 2181).
 	 */
-	private String getDomainName() throws IOException {
-		int nextByte = data.readByte();
-		String result = "";
-
-		if (isPointer(nextByte)) {
-			int offset = getOffset(constructPointer(nextByte));
-			if (domains.containsKey(offset)) {
-				return domains.get(offset);
-			} else {
-				return getDomainName(offset);
-			}
-		}
-
-		while (nextByte > 0 && !isPointer(nextByte)) {
-			byte[] domainParts = new byte[nextByte];
-			for (int j = 0; j < nextByte; j++) {
-				domainParts[j] = data.readByte();
-			}
-			String domain = new String(domainParts);
-			if (result.length() == 0) {
-				result = domain;
-			} else {
-				result = result + "." + domain;
-			}
-			nextByte = data.readByte();
-		}
-		if (isPointer(nextByte)) {
-			int pointer = constructPointer(nextByte);
-			result = result + "." + getDomainName(getOffset(pointer));
-		}
-		return result;
+	private static long getTTL(DNSMessageReader reader) {
+		return reader.getTTL() > Integer.MAX_VALUE ? 0 : reader.getTTL();
 	}
 
 	/**
-	 * Parses the byte array starting from offset to a domain name.
-	 * Every domain name returned is placed onto the 'domains' map,
-	 * with 'offset' as its key.
-	 * 
-	 * @param offset	The offset (from start) to start parsing.
-	 * @return	The parsed domain name.
+	 * Returns the MINIMUM field of the SOA record the reader currently points
+	 * to.
 	 */
-	private String getDomainName(int offset) {
-		String result = "";
-		int idx = offset;
-		int nextByte = byteData[idx];
-
-		if (domains.containsKey(offset)) {
-			return domains.get(offset);
-		}
-
-		while (!isPointer(nextByte) && nextByte > 0) {
-			byte[] domainParts = new byte[nextByte];
-			idx++;
-			for (int i = 0; i < nextByte; i++) {
-				domainParts[i] = byteData[idx];
-				idx++;
-			}
-			nextByte = byteData[idx];
-
-			String domain = new String(domainParts);
-			if (result.length() == 0) {
-				result = domain;
-			} else {
-				result = result + "." + domain;
-			}
-		}
-		if (isPointer(nextByte)) {
-			int pointerPart = byteData[idx + 1];
-			int pointer = constructPointer(nextByte, pointerPart);
-			result = result + "." + getDomainName(getOffset(pointer));
-		}
-
-		domains.put(offset, result);
-		return result;
+	private static long getSOAMinimum(DNSMessageReader reader) throws IOException {
+		int rname = reader.skipName(reader.getRDataOffset());
+		int serial = reader.skipName(rname);
+		return reader.u32(serial + 16);
 	}
 
 	/**
@@ -363,22 +314,4 @@ public class DNSResponse {
 		return result;
 	}
 
-	/* Helper functions for dealing with pointers */
-	private boolean isPointer(int i) {
-		return (i & POINTER_MASK) == POINTER_MASK;
-	}
-
-	private int constructPointer(int firstPart) throws IOException {
-		int rest = data.readByte();
-		return constructPointer(firstPart, rest);
-	}
-
-	private int constructPointer(int firstPart, int secondPart) {
-		return ((firstPart & 0xff) << 8 | secondPart & 0xff);
-	}
-
-	private int getOffset(int pointer) {
-		return (pointer & (1 << 14) - 1) & 0b0011111111111111;
-	}
-
 }
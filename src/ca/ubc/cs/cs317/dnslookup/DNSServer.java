@@ -0,0 +1,277 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/** Recursive DNS server answering standard queries over UDP. Each query is answered from the
+ * cache or, if needed, through the iterative resolver, and the answer is sent back as a regular
+ * DNS response message (see ResponseEncoder).
+ *
+ * Queries are handled by a fixed pool of workers, each running on its own virtual thread. A
+ * worker receives a query, resolves it, and sends the response before receiving the next one,
+ * so the number of workers bounds the number of queries being resolved at the same time. Since
+ * workers are virtual threads, a worker waiting for upstream servers does not hold an operating
+ * system thread.
+ *
+ * A name known not to exist is answered with NXDOMAIN, and a name without records of the
+ * requested type with an empty NOERROR answer; both include the SOA record of the enclosing
+ * zone if it is cached. Queries that could not be resolved are answered with SERVFAIL. Queries
+ * with more than one question, or with a question name that has no host name form (e.g., a
+ * label holding a '.'), get FORMERR without being resolved, and queries for other opcodes,
+ * classes or record types that cannot be encoded get NOTIMP. Messages that are not queries are
+ * ignored.
+ *
+ * Responses are limited to 512 bytes, or, for clients advertising a larger payload size with
+ * EDNS0, to that size up to MAX_EDNS_PAYLOAD_SIZE. Larger responses are truncated.
+ *
+ * Positive answers read from the cache may be kept encoded in a response cache (see
+ * ResponseCache), so later queries for the same question are answered by copying the encoded
+ * response instead of looking up and encoding its records again. The response cache is kept
+ * consistent with the DNS cache by listening to its changes (see DNSCache.setChangeListener).
+ */
+class DNSServer implements Closeable {
+
+    static final int DEFAULT_WORKERS = 256;
+    static final int MAX_EDNS_PAYLOAD_SIZE = QueryEncoder.DEFAULT_EDNS_PAYLOAD_SIZE;
+
+    private static final int RECEIVE_BUFFER_SIZE = 65535;
+    private static final int MAX_RESPONSE_LENGTH = 512;
+    private static final int FLAG_QR = 0x8000;
+    private static final int CLASS_IN = 1;
+
+    private final DatagramChannel channel;
+    private final DNSCache cache;
+    private final Function<DNSNode, Set<ResourceRecord>> resolver;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile ResponseCache responses;
+
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    private volatile boolean running = true;
+
+    /** Starts a server listening on a UDP port of all local addresses.
+     *
+     * @param port        Port to listen on, or 0 for any free port.
+     * @param workerCount Number of queries that may be handled at the same time.
+     * @param cache       Cache used to find negative answers and SOA records.
+     * @param resolver    Function returning the results of a query, from the cache or by
+     *                    resolving it.
+     * @throws IOException If the port could not be bound.
+     */
+    DNSServer(int port, int workerCount, DNSCache cache, Function<DNSNode, Set<ResourceRecord>> resolver)
+            throws IOException {
+        if (workerCount <= 0)
+            throw new IllegalArgumentException("Invalid number of workers: " + workerCount);
+        this.cache = cache;
+        this.resolver = resolver;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(port));
+        setResponseCacheSize(ResponseCache.DEFAULT_MAXIMUM_SIZE);
+
+        for (int i = 0; i < workerCount; i++)
+            workers.add(Thread.ofVirtual().name("dns-server-worker-" + i).start(this::serve));
+    }
+
+    /** Port this server listens on.
+     *
+     * @return Local UDP port of the server.
+     * @throws IOException If the server was closed.
+     */
+    int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /** Number of queries received, including malformed and unsupported ones.
+     *
+     * @return Number of queries received.
+     */
+    long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    /** Number of queries answered with SERVFAIL because they could not be resolved.
+     *
+     * @return Number of failed queries.
+     */
+    long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /** Changes the number of questions whose encoded responses are kept, discarding the
+     * responses kept so far.
+     *
+     * @param maximumSize Maximum number of questions, or 0 to stop keeping encoded responses.
+     */
+    void setResponseCacheSize(int maximumSize) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException("Invalid response cache size: " + maximumSize);
+        ResponseCache responses = maximumSize > 0 ? new ResponseCache(cache, maximumSize) : null;
+        this.responses = responses;
+        cache.setChangeListener(responses == null ? null : responses::invalidate);
+    }
+
+    /** Response cache currently used by this server.
+     *
+     * @return The response cache, or null if responses are not kept.
+     */
+    ResponseCache getResponseCache() {
+        return responses;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        cache.setChangeListener(null);
+        channel.close();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void serve() {
+        ByteBuffer query = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(MAX_EDNS_PAYLOAD_SIZE);
+        DNSMessageReader reader = new DNSMessageReader();
+        while (running) {
+            try {
+                query.clear();
+                SocketAddress client = channel.receive(query);
+                query.flip();
+                response.clear().limit(MAX_RESPONSE_LENGTH);
+                if (answer(query, reader, response)) {
+                    response.flip();
+                    channel.send(response, client);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // Failing to answer one client should not stop the worker
+                if (running)
+                    System.err.println("Could not answer query (" + e.getMessage() + ").");
+            }
+        }
+    }
+
+    /** Builds the response to a query. Also used by benchmarks to measure the server without
+     * sockets.
+     *
+     * @return true if a response should be sent, or false if the message should be ignored.
+     */
+    boolean answer(ByteBuffer query, DNSMessageReader reader, ByteBuffer response) {
+        try {
+            reader.reset(query);
+        } catch (IOException e) {
+            return false;
+        }
+        int id = reader.getId();
+        int flags = reader.getFlags();
+        if ((flags & FLAG_QR) != 0)
+            return false;
+        queryCount.increment();
+
+        if (((flags >> 11) & 0xF) != 0) {
+            ResponseEncoder.encodeError(response, id, flags, ResponseEncoder.RCODE_NOTIMP);
+            return true;
+        }
+
+        DNSNode question;
+        int nameEnd;
+        int ednsPayloadSize = 0;
+        try {
+            if (reader.getCount(DNSMessageReader.SECTION_QUESTION) != 1 || !reader.next())
+                throw new IOException("Expected exactly one question");
+            if (reader.getRecordClass() != CLASS_IN) {
+                ResponseEncoder.encodeError(response, id, flags, ResponseEncoder.RCODE_NOTIMP);
+                return true;
+            }
+            RecordType type = RecordType.getByCode(reader.getType());
+            if (!ResponseEncoder.isSupported(type)) {
+                ResponseEncoder.encodeError(response, id, flags, ResponseEncoder.RCODE_NOTIMP);
+                return true;
+            }
+            question = new DNSNode(reader.getName(reader.getNameOffset()), type);
+            // Labels holding a '.' (or decoding to empty labels) do not survive the conversion
+            // to a host name, and could not be sent upstream: reject them before resolving
+            if (!reader.nameEquals(reader.getNameOffset(), question.getKey()))
+                throw new IOException("Invalid question name");
+            // The class and type follow the name
+            nameEnd = reader.getRDataOffset() - 4;
+
+            while (reader.next()) {
+                if (reader.getSection() == DNSMessageReader.SECTION_ADDITIONAL
+                        && reader.getType() == DNSMessageReader.TYPE_OPT)
+                    ednsPayloadSize = Math.min(Math.max(reader.getRecordClass(), MAX_RESPONSE_LENGTH),
+                            MAX_EDNS_PAYLOAD_SIZE);
+            }
+        } catch (IOException e) {
+            ResponseEncoder.encodeError(response, id, flags, ResponseEncoder.RCODE_FORMERR);
+            return true;
+        }
+
+        if (ednsPayloadSize > 0)
+            response.limit(ednsPayloadSize);
+        ResponseCache responses = this.responses;
+        if (responses != null && responses.write(response, query, nameEnd, id, flags, question, ednsPayloadSize))
+            return true;
+
+        Set<ResourceRecord> results;
+        try {
+            results = resolver.apply(question);
+        } catch (RuntimeException e) {
+            results = Collections.emptySet();
+        }
+
+        int rcode = ResponseEncoder.RCODE_NOERROR;
+        Set<ResourceRecord> authorities = Collections.emptySet();
+        if (results.isEmpty()) {
+            if (cache.isNameError(question.getHostName()))
+                rcode = ResponseEncoder.RCODE_NXDOMAIN;
+            else if (!cache.isNegative(question))
+                rcode = ResponseEncoder.RCODE_SERVFAIL;
+
+            if (rcode == ResponseEncoder.RCODE_SERVFAIL) {
+                failureCount.increment();
+            } else {
+                ResourceRecord soa = cache.getClosestSOA(question.getHostName());
+                if (soa != null)
+                    authorities = Collections.singleton(soa);
+            }
+        }
+
+        int start = response.position();
+        try {
+            ResponseEncoder.encode(response, id, flags, rcode, question, results, authorities,
+                    ednsPayloadSize > 0 ? MAX_EDNS_PAYLOAD_SIZE : 0);
+        } catch (IllegalArgumentException e) {
+            response.clear().limit(MAX_RESPONSE_LENGTH);
+            ResponseEncoder.encodeError(response, id, flags, ResponseEncoder.RCODE_FORMERR);
+            return true;
+        }
+        // The question is encoded in lower case: answer with the case of the query, as the
+        // response cache does
+        int nameLength = nameEnd - DNSMessageReader.HEADER_LENGTH;
+        if (nameLength == question.getKey().length)
+            response.put(start + DNSMessageReader.HEADER_LENGTH, query, DNSMessageReader.HEADER_LENGTH, nameLength);
+
+        if (responses != null && !results.isEmpty())
+            responses.put(question, ednsPayloadSize, response.duplicate().flip().position(start), results);
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/** Hashed timing wheel used to reclaim expired cache entries in bulk. Nodes are scheduled in
+ * one-second slots according to the time their earliest record expires. A daemon thread visits
+ * each slot once its second has passed, and invokes an expiry handler for every node whose
+ * deadline has been reached. Deadlines further than one revolution in the future share a slot
+ * with nearer deadlines, and are simply skipped until the revolution in which they fall due.
+ *
+ * The handler is expected to remove the expired records of the node, and returns the deadline
+ * of the next record to expire (or a non-positive value if nothing is left for that node), which
+ * is then scheduled again.
+ *
+ * Nodes are scheduled without locking, so a node may be added to a slot while that slot is being
+ * visited. Since the reaper visits a slot again after moving past it, and a node added to a slot
+ * that was passed meanwhile is moved to the current slot, such a node is visited either in this
+ * revolution or at the next second, but never left for a whole revolution.
+ */
+class ExpiryWheel {
+
+    private static final int SLOT_COUNT = 1024;
+    private static final long SLOT_MILLIS = 1000;
+
+    private final Map<DNSNode, Long>[] slots;
+    private final ToLongFunction<DNSNode> expiryHandler;
+
+    private volatile long nextSlotTime;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ExpiryWheel(ToLongFunction<DNSNode> expiryHandler) {
+        this.expiryHandler = expiryHandler;
+        this.slots = new Map[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; i++)
+            slots[i] = new ConcurrentHashMap<>();
+        this.nextSlotTime = CoarseClock.currentTimeMillis() / SLOT_MILLIS * SLOT_MILLIS;
+
+        Thread reaper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(SLOT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                advance(CoarseClock.currentTimeMillis());
+            }
+        }, "dns-cache-expiry");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** Schedules a node to be visited once a deadline is reached. If the node is already
+     * scheduled in the same slot, the earliest of both deadlines is kept.
+     *
+     * @param node     Node to be scheduled.
+     * @param deadline Time (as returned by CoarseClock) at which the node should be visited.
+     */
+    void schedule(DNSNode node, long deadline) {
+        long slotTime = Math.max(deadline, nextSlotTime);
+        Map<DNSNode, Long> slot = slotFor(slotTime);
+        slot.merge(node, deadline, Math::min);
+        // The reaper moved past the slot in the meantime, and may have missed the node
+        if (slotTime / SLOT_MILLIS * SLOT_MILLIS < nextSlotTime && slot.remove(node, deadline))
+            schedule(node, deadline);
+    }
+
+    /** Removes a node scheduled for a specific deadline, e.g., because it was evicted from the
+     * cache.
+     *
+     * @param node     Node to be removed from the wheel.
+     * @param deadline Deadline used when the node was scheduled.
+     */
+    void cancel(DNSNode node, long deadline) {
+        // A node whose deadline had passed when it was scheduled is in the current slot
+        if (!slotFor(deadline).remove(node, deadline))
+            slotFor(nextSlotTime).remove(node, deadline);
+    }
+
+    /** Visits all slots whose second has completely passed, invoking the expiry handler for
+     * each node whose deadline has been reached.
+     *
+     * @param now Current time, as returned by CoarseClock.
+     */
+    synchronized void advance(long now) {
+        while (nextSlotTime + SLOT_MILLIS <= now) {
+            Map<DNSNode, Long> slot = slotFor(nextSlotTime);
+            visit(slot, now);
+            nextSlotTime += SLOT_MILLIS;
+            // Nodes added while the slot was visited, by schedule calls that had not seen the
+            // new slot time yet (later calls move their node themselves)
+            visit(slot, now);
+        }
+    }
+
+    private void visit(Map<DNSNode, Long> slot, long now) {
+        for (Map.Entry<DNSNode, Long> entry : slot.entrySet()) {
+            DNSNode node = entry.getKey();
+            long deadline = entry.getValue();
+            if (deadline <= now && slot.remove(node, deadline)) {
+                long next = expiryHandler.applyAsLong(node);
+                if (next > 0)
+                    schedule(node, next);
+            }
+        }
+    }
+
+    private Map<DNSNode, Long> slotFor(long time) {
+        return slots[(int) ((time / SLOT_MILLIS) % SLOT_COUNT)];
+    }
+}
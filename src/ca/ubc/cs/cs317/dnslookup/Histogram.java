@@ -0,0 +1,86 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Concurrent histogram of non-negative values (e.g., latencies in microseconds), with buckets
+ * laid out as in HdrHistogram: values below 64 each have their own bucket, and every larger
+ * power of two is split into 32 buckets of equal width, so any recorded value is known within
+ * about 3%. Recording a value is a few atomic increments and does not allocate. Values larger
+ * than MAX_VALUE are counted as MAX_VALUE.
+ */
+class Histogram {
+
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Records a value.
+     *
+     * @param value Value to be recorded; negative values are counted as 0.
+     */
+    void record(long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Returns the smallest value such that a given fraction of the recorded values are equal or
+     * lower, rounded up to the highest value of its bucket (but not above the maximum recorded).
+     *
+     * @param fraction Fraction of the recorded values, between 0 and 1 (e.g., 0.99 for p99).
+     * @return The value at that fraction, or 0 if no value was recorded.
+     */
+    long getValueAtPercentile(double fraction) {
+        long total = count.sum();
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
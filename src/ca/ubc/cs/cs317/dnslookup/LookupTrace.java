@@ -0,0 +1,208 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/** Structured trace of a single lookup: the queries sent, the responses received (with their
+ * records), the referrals and CNAMEs followed, and the failures encountered, each with the time
+ * elapsed since the start of the lookup. Events only hold references to objects the resolver
+ * already created (the parsed response, the addresses of servers), and are only formatted when
+ * the trace is rendered. The one exception is the TTLs of the records of a response: these count
+ * down from the time the response was received, so they are copied when the response is recorded.
+ *
+ * Events may be added from several threads (e.g., queries sent to other servers of a race), so
+ * adding an event is synchronized.
+ */
+class LookupTrace {
+
+    private enum Kind { QUERY, ANSWERED, RESPONSE, TCP_RETRY, REFERRAL, UNRESOLVED_REFERRAL, CNAME, FAILURE }
+
+    private static class Event {
+        final long nanos;
+        final Kind kind;
+        final Object subject;
+        final String detail;
+        // Duration measured by the event itself (e.g., of an exchange), in nanoseconds
+        final long elapsedNanos;
+        // TTLs of the records of a response when it was recorded, in the order they are rendered
+        final long[] ttls;
+
+        Event(long nanos, Kind kind, Object subject, String detail, long elapsedNanos, long[] ttls) {
+            this.nanos = nanos;
+            this.kind = kind;
+            this.subject = subject;
+            this.detail = detail;
+            this.elapsedNanos = elapsedNanos;
+            this.ttls = ttls;
+        }
+    }
+
+    private final DNSNode node;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final List<Event> events = new ArrayList<>();
+    private volatile long durationNanos = -1;
+    private volatile int resultCount;
+
+    LookupTrace(DNSNode node) {
+        this.node = node;
+    }
+
+    /** Records a query sent to a server (not counting retransmissions).
+     */
+    void query(DNSQuery query) {
+        add(Kind.QUERY, query, null);
+    }
+
+    /** Records the response that ended an exchange with upstream servers.
+     *
+     * @param server Server that sent the response.
+     * @param nanos  Time elapsed since the exchange started, in nanoseconds.
+     */
+    void answered(InetSocketAddress server, long nanos) {
+        add(Kind.ANSWERED, server, null, nanos, null);
+    }
+
+    /** Records a parsed response, rendered with all of its records and their TTLs at this time.
+     */
+    void response(DNSResponse response) {
+        List<ResourceRecord> answers = response.getAnswers();
+        List<ResourceRecord> nameServers = response.getNameServers();
+        List<ResourceRecord> additionals = response.getAdditionals();
+        long[] ttls = new long[answers.size() + nameServers.size() + additionals.size()];
+        int i = 0;
+        for (ResourceRecord record : answers)
+            ttls[i++] = record.getTTL();
+        for (ResourceRecord record : nameServers)
+            ttls[i++] = record.getTTL();
+        for (ResourceRecord record : additionals)
+            ttls[i++] = record.getTTL();
+        add(Kind.RESPONSE, response, null, 0, ttls);
+    }
+
+    /** Records a truncated response, retried over TCP.
+     */
+    void tcpRetry(InetSocketAddress server) {
+        add(Kind.TCP_RETRY, server, null);
+    }
+
+    /** Records a referral to other name servers.
+     *
+     * @param servers Addresses of the name servers, in the order they will be tried.
+     */
+    void referral(List<InetAddress> servers) {
+        add(Kind.REFERRAL, servers, null);
+    }
+
+    /** Records a referral to a name server whose address must first be looked up.
+     */
+    void unresolvedReferral(String nameServer) {
+        add(Kind.UNRESOLVED_REFERRAL, nameServer, null);
+    }
+
+    /** Records a CNAME followed to its canonical name.
+     */
+    void cname(String canonicalName) {
+        add(Kind.CNAME, canonicalName, null);
+    }
+
+    /** Records a failed exchange, e.g., a timeout.
+     */
+    void failure(String message) {
+        add(Kind.FAILURE, null, message);
+    }
+
+    /** Marks the lookup as completed.
+     *
+     * @param results Number of results of the lookup.
+     */
+    void finish(int results) {
+        resultCount = results;
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    private void add(Kind kind, Object subject, String detail) {
+        add(kind, subject, detail, 0, null);
+    }
+
+    private synchronized void add(Kind kind, Object subject, String detail, long elapsedNanos, long[] ttls) {
+        events.add(new Event(System.nanoTime() - startNanos, kind, subject, detail, elapsedNanos, ttls));
+    }
+
+    /** Prints the trace in a readable form.
+     *
+     * @param out Stream the trace is printed to.
+     */
+    void render(PrintStream out) {
+        List<Event> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(events);
+        }
+        long duration = durationNanos;
+        out.printf("Lookup %s %s at %s: %s\n", node.getHostName(), node.getType(),
+                new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(startMillis)),
+                duration < 0 ? "in progress" : String.format("%d results in %.3f ms", resultCount, duration / 1e6));
+
+        for (Event event : snapshot) {
+            out.printf("  %+10.3f ms  ", event.nanos / 1e6);
+            switch (event.kind) {
+                case QUERY:
+                    DNSQuery query = (DNSQuery) event.subject;
+                    out.println("Query ID:    " + query.getId() + " " + query.getNode().getHostName() + "  "
+                            + query.getNode().getType() + " --> " + query.getServer().getAddress().getHostAddress());
+                    break;
+                case ANSWERED:
+                    out.printf("Answered by %s after %.3f ms\n",
+                            ((InetSocketAddress) event.subject).getAddress().getHostAddress(), event.elapsedNanos / 1e6);
+                    break;
+                case RESPONSE:
+                    renderResponse(out, (DNSResponse) event.subject, event.ttls);
+                    break;
+                case TCP_RETRY:
+                    out.println("Response truncated, retrying over TCP with "
+                            + ((InetSocketAddress) event.subject).getAddress().getHostAddress());
+                    break;
+                case REFERRAL:
+                    StringBuilder servers = new StringBuilder();
+                    for (Object server : (List<?>) event.subject)
+                        servers.append(servers.length() > 0 ? ", " : "").append(((InetAddress) server).getHostAddress());
+                    out.println("Referral to " + servers);
+                    break;
+                case UNRESOLVED_REFERRAL:
+                    out.println("Referral to " + event.subject + ", looking up its address");
+                    break;
+                case CNAME:
+                    out.println("Following CNAME to " + event.subject);
+                    break;
+                case FAILURE:
+                    out.println("Failed: " + event.detail);
+                    break;
+            }
+        }
+    }
+
+    private static void renderResponse(PrintStream out, DNSResponse response, long[] ttls) {
+        out.println("Response ID: " + response.getId() + " Authoritative: " + response.getIsAuthoritative());
+        int offset = renderSection(out, "Answers", response.getAnswers(), ttls, 0);
+        offset = renderSection(out, "Nameservers", response.getNameServers(), ttls, offset);
+        renderSection(out, "Additional Information", response.getAdditionals(), ttls, offset);
+    }
+
+    /** Prints the records of a section, whose TTLs start at a given index of ttls.
+     *
+     * @return Index of the TTL of the first record of the next section.
+     */
+    private static int renderSection(PrintStream out, String name, List<ResourceRecord> records,
+                                     long[] ttls, int offset) {
+        out.println("    " + name + " (" + records.size() + ")");
+        for (ResourceRecord record : records)
+            out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), ttls[offset++],
+                    record.getType(), record.getTextResult());
+        return offset;
+    }
+}
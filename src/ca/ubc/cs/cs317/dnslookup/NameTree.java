@@ -0,0 +1,388 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/** Concurrent map from DNS nodes (host name and record type) to values, stored as a trie of
+ * host names keyed by their labels in reverse order (e.g., www.cs.ubc.ca is found under ca, then
+ * ubc, then cs). Names in the same domain share the tree nodes of that domain, so the closest
+ * ancestor of a name holding a value, or all values under a domain, are found with a single walk
+ * of the tree instead of one lookup per candidate name.
+ *
+ * Host names are split at every dot, and labels are compared as DNSNode compares host names
+ * (ignoring the case of ASCII letters and a trailing dot), so each tree node matches exactly the
+ * keys that are equal to each other. The root of the tree holds the values of the root name.
+ * Tree nodes do not hold a copy of their name or label: the label of a tree node is a range of
+ * the host name of the key that created it, so each label of a domain is stored once, in its tree
+ * node, however many names are under that domain.
+ *
+ * The children of a tree node are kept in an open-addressing hash table of their labels, so a
+ * lookup does not create any object. Readers never take a lock. Writers lock the tree node of the
+ * key being updated, and the parent of a tree node being added or removed. Tree nodes left
+ * without values or children are removed from the tree.
+ */
+class NameTree<V> {
+
+    private final Function<V, DNSNode> keyOf;
+    private final TreeNode<V> root = new TreeNode<>("", 0, 0, null);
+
+    /** Creates an empty tree.
+     *
+     * @param keyOf Function returning the key a value is stored for, which must not change
+     *              while the value is in the tree.
+     */
+    NameTree(Function<V, DNSNode> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    /** Sets the value of a key, replacing its current value if it has one.
+     *
+     * @param value Value, stored for the key returned by keyOf.
+     */
+    void put(V value) {
+        update(keyOf.apply(value), (k, old) -> value, true);
+    }
+
+    /** Removes the value of a key.
+     *
+     * @param key Host name and record type.
+     * @return The value removed, or null if the key had none.
+     */
+    V remove(DNSNode key) {
+        Object[] removed = new Object[1];
+        update(key, (k, old) -> {
+            removed[0] = old;
+            return null;
+        }, false);
+        @SuppressWarnings("unchecked")
+        V value = (V) removed[0];
+        return value;
+    }
+
+    /** Performs an action for every value of a domain name and of the names under it (e.g., for
+     * ubc.ca, ubc.ca itself, cs.ubc.ca and www.cs.ubc.ca), in no particular order.
+     *
+     * @param domain Domain name, or an empty string for all names.
+     * @param action Action performed with the key and value.
+     */
+    void forEachUnder(String domain, BiConsumer<DNSNode, V> action) {
+        TreeNode<V> node = find(domain, withoutTrailingDot(domain));
+        if (node != null)
+            forEach(node, action);
+    }
+
+    /** Returns the values of a given type held by a host name and by each of its ancestors, from
+     * the host name itself up to the top-level domain.
+     *
+     * @param hostName Host name whose values and those of its ancestors should be returned.
+     * @param type     Record type of the values.
+     * @return Values found, closest name first.
+     */
+    List<V> getAncestors(String hostName, RecordType type) {
+        List<V> values = new ArrayList<>();
+        TreeNode<V> node = root;
+        int end = withoutTrailingDot(hostName);
+        while (end > 0 && node != null) {
+            int start = hostName.lastIndexOf('.', end - 1) + 1;
+            node = node.child(hostName, start, end);
+            if (node != null) {
+                V value = get(node, type);
+                if (value != null)
+                    values.add(value);
+            }
+            end = start - 1;
+        }
+        Collections.reverse(values);
+        return values;
+    }
+
+    private static int withoutTrailingDot(String name) {
+        return name.endsWith(".") ? name.length() - 1 : name.length();
+    }
+
+    /** Returns the tree node of the first characters of a name, or null if it is not in the tree. */
+    private TreeNode<V> find(String name, int length) {
+        TreeNode<V> node = root;
+        int end = length;
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.child(name, start, end);
+            if (node == null || start == 0)
+                return node;
+            end = start - 1;
+        }
+        return node;
+    }
+
+    private V update(DNSNode key, BiFunction<DNSNode, V, V> function, boolean create) {
+        String name = key.getHostName();
+        RecordType type = key.getType();
+        while (true) {
+            int length = withoutTrailingDot(name);
+            TreeNode<V> node = create ? findOrCreate(name, length) : find(name, length);
+            if (node == null)
+                return null;
+            V value;
+            boolean empty;
+            synchronized (node) {
+                if (node.isRemoved())
+                    continue; // Removed from the tree since it was found: find it again
+                V old = get(node, type);
+                if (old == null && !create)
+                    return null;
+                value = function.apply(old == null ? key : keyOf.apply(old), old);
+                if (value != old)
+                    set(node, type, value);
+                empty = node.isEmpty();
+            }
+            if (empty)
+                prune(node);
+            return value;
+        }
+    }
+
+    private TreeNode<V> findOrCreate(String name, int length) {
+        restart:
+        while (true) {
+            TreeNode<V> node = root;
+            int end = length;
+            while (end > 0) {
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                TreeNode<V> child = node.child(name, start, end);
+                if (child == null) {
+                    synchronized (node) {
+                        if (node.isRemoved())
+                            continue restart;
+                        child = node.child(name, start, end);
+                        if (child == null)
+                            child = node.addChild(name, start, end);
+                    }
+                }
+                if (start == 0)
+                    return child;
+                node = child;
+                end = start - 1;
+            }
+            return node;
+        }
+    }
+
+    /** Removes a tree node without values or children, and then each of its ancestors that is
+     * left without values or children. Parents are always locked before their children.
+     */
+    private void prune(TreeNode<V> node) {
+        while (node != root) {
+            TreeNode<V> parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.isRemoved() || !node.isEmpty())
+                        return;
+                    node.flags = TreeNode.REMOVED_FLAG;
+                    parent.removeChild(node);
+                }
+            }
+            node = parent;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V get(TreeNode<V> node, RecordType type) {
+        // Types without a value are skipped without reading the values themselves
+        if ((node.flags & typeFlag(type)) == 0)
+            return null;
+        Object values = node.values;
+        if (values instanceof Object[]) {
+            for (Object value : (Object[]) values)
+                if (keyOf.apply((V) value).getType() == type)
+                    return (V) value;
+            return null;
+        }
+        return values != null && keyOf.apply((V) values).getType() == type ? (V) values : null;
+    }
+
+    /** Replaces the value of a type, with the tree node locked. */
+    @SuppressWarnings("unchecked")
+    private void set(TreeNode<V> node, RecordType type, V value) {
+        List<Object> updated = new ArrayList<>();
+        Object values = node.values;
+        if (values instanceof Object[])
+            Collections.addAll(updated, (Object[]) values);
+        else if (values != null)
+            updated.add(values);
+        updated.removeIf(existing -> keyOf.apply((V) existing).getType() == type);
+        if (value != null)
+            updated.add(value);
+        node.values = updated.isEmpty() ? null : updated.size() == 1 ? updated.get(0) : updated.toArray();
+        node.flags = value != null ? node.flags | typeFlag(type) : node.flags & ~typeFlag(type);
+    }
+
+    private static int typeFlag(RecordType type) {
+        return 1 << type.ordinal();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void forEach(TreeNode<V> node, BiConsumer<DNSNode, V> action) {
+        Object values = node.values;
+        if (values instanceof Object[]) {
+            for (Object value : (Object[]) values)
+                action.accept(keyOf.apply((V) value), (V) value);
+        } else if (values != null) {
+            action.accept(keyOf.apply((V) values), (V) values);
+        }
+        AtomicReferenceArray<TreeNode<V>> children = node.children;
+        if (children != null) {
+            for (int i = 0; i < children.length(); i++) {
+                TreeNode<V> child = children.get(i);
+                if (child != null && child.parent == node)
+                    forEach(child, action);
+            }
+        }
+    }
+
+    /** Hash of a label, ignoring the case of ASCII letters. */
+    private static int hash(String name, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + DNSNode.toLowerCase(name.charAt(i));
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Node of the tree, holding the values of one host name. Its label is the part of the host
+     * name of the key that created it between labelStart and labelEnd.
+     *
+     * Children are kept in a table of a power of two size using linear probing, at most half
+     * full. The table is only changed with the node locked, and replaced by a new table when it
+     * grows or shrinks. Removed children are replaced by a marker (whose parent is null) so that
+     * lookups of the children after them still find them, and markers are dropped when the table
+     * is replaced.
+     */
+    private static final class TreeNode<V> {
+
+        private static final int MINIMUM_CAPACITY = 4;
+        private static final TreeNode<?> REMOVED = new TreeNode<>("", 0, 0, null);
+
+        /** Flag set once the node is removed from the tree. */
+        static final int REMOVED_FLAG = 1 << 31;
+
+        final String source;
+        final int labelStart;
+        final int labelEnd;
+        final TreeNode<V> parent;
+        /** One bit for each record type with a value (see typeFlag), and REMOVED_FLAG. */
+        volatile int flags;
+        /** Either null, a single value, or an array of values of different types. */
+        volatile Object values;
+        volatile AtomicReferenceArray<TreeNode<V>> children;
+        private int childCount;
+        private int usedSlots;
+
+        TreeNode(String source, int labelStart, int labelEnd, TreeNode<V> parent) {
+            this.source = source;
+            this.labelStart = labelStart;
+            this.labelEnd = labelEnd;
+            this.parent = parent;
+        }
+
+        boolean isRemoved() {
+            return (flags & REMOVED_FLAG) != 0;
+        }
+
+        boolean isEmpty() {
+            return values == null && children == null;
+        }
+
+        /** Returns true if the label of this node is equal (ignoring the case of ASCII letters) to
+         * part of a name.
+         */
+        boolean hasLabel(String name, int start, int end) {
+            int length = end - start;
+            return labelEnd - labelStart == length && DNSNode.regionMatches(source, labelStart, name, start, length);
+        }
+
+        /** Returns the child whose label is part of a name, or null if there is none. */
+        TreeNode<V> child(String name, int start, int end) {
+            AtomicReferenceArray<TreeNode<V>> table = children;
+            if (table == null)
+                return null;
+            int mask = table.length() - 1;
+            for (int i = hash(name, start, end) & mask; ; i = (i + 1) & mask) {
+                TreeNode<V> child = table.get(i);
+                if (child == null)
+                    return null;
+                if (child.parent == this && child.hasLabel(name, start, end))
+                    return child;
+            }
+        }
+
+        /** Adds a child whose label is part of a name, with this node locked. */
+        TreeNode<V> addChild(String name, int start, int end) {
+            TreeNode<V> child = new TreeNode<>(name, start, end, this);
+            AtomicReferenceArray<TreeNode<V>> table = children;
+            if (table == null || (usedSlots + 1) * 2 > table.length()) {
+                // The new table is only published once it holds all children
+                table = resize(childCount + 1);
+                insert(table, child);
+                children = table;
+            } else {
+                insert(table, child);
+            }
+            childCount++;
+            return child;
+        }
+
+        /** Removes a child, with this node locked. */
+        void removeChild(TreeNode<V> child) {
+            AtomicReferenceArray<TreeNode<V>> table = children;
+            int mask = table.length() - 1;
+            int i = hash(child.source, child.labelStart, child.labelEnd) & mask;
+            while (table.get(i) != child)
+                i = (i + 1) & mask;
+            table.set(i, marker());
+            childCount--;
+            if (childCount == 0) {
+                children = null;
+                usedSlots = 0;
+            } else if (childCount * 8 < table.length() && table.length() > MINIMUM_CAPACITY) {
+                children = resize(childCount);
+            }
+        }
+
+        /** Returns a new table holding the current children, with room for a number of them. */
+        private AtomicReferenceArray<TreeNode<V>> resize(int count) {
+            int capacity = MINIMUM_CAPACITY;
+            while (capacity < count * 3)
+                capacity <<= 1;
+            AtomicReferenceArray<TreeNode<V>> table = new AtomicReferenceArray<>(capacity);
+            AtomicReferenceArray<TreeNode<V>> old = children;
+            usedSlots = 0;
+            if (old != null) {
+                for (int i = 0; i < old.length(); i++) {
+                    TreeNode<V> child = old.get(i);
+                    if (child != null && child.parent == this)
+                        insert(table, child);
+                }
+            }
+            return table;
+        }
+
+        private void insert(AtomicReferenceArray<TreeNode<V>> table, TreeNode<V> child) {
+            int mask = table.length() - 1;
+            int i = hash(child.source, child.labelStart, child.labelEnd) & mask;
+            while (table.get(i) != null && table.get(i).parent == this)
+                i = (i + 1) & mask;
+            if (table.get(i) == null)
+                usedSlots++;
+            table.set(i, child);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> TreeNode<V> marker() {
+            return (TreeNode<V>) REMOVED;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Cache of negative answers (RFC 2308). Name errors (NXDOMAIN) are cached per host name, and
+ * apply to every record type, while NODATA answers (the name exists, but has no record of the
+ * requested type) are cached per node. Each entry only holds its expiration time.
+ *
+ * The number of entries is bounded. When the bound is reached, expired entries are purged and,
+ * if that is not enough, arbitrary entries are dropped: negative answers are mostly for names
+ * that are looked up once, so recency gives little information about which ones to keep.
+ */
+class NegativeCache {
+
+    private final Map<String, Long> nameErrors = new ConcurrentHashMap<>();
+    private final Map<DNSNode, Long> noData = new ConcurrentHashMap<>();
+
+    private volatile int maximumSize;
+
+    NegativeCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    int size() {
+        return nameErrors.size() + noData.size();
+    }
+
+    void addNameError(String hostName, long expirationTime) {
+        makeRoom();
+        nameErrors.merge(key(hostName), expirationTime, Math::max);
+    }
+
+    void addNoData(DNSNode node, long expirationTime) {
+        makeRoom();
+        noData.merge(node, expirationTime, Math::max);
+    }
+
+    /** Returns true if a host name is known not to exist.
+     *
+     * @param hostName Host name to be checked.
+     * @param now      Current time, as returned by CoarseClock.
+     * @return true if an unexpired name error is cached for the host name.
+     */
+    boolean isNameError(String hostName, long now) {
+        return isValid(nameErrors, key(hostName), now);
+    }
+
+    /** Returns true if a node is known to have no records, either because its host name does not
+     * exist or because the name has no record of its type.
+     *
+     * @param node Node to be checked.
+     * @param now  Current time, as returned by CoarseClock.
+     * @return true if an unexpired negative answer is cached for the node.
+     */
+    boolean isNegative(DNSNode node, long now) {
+        return isValid(noData, node, now) || isNameError(node.getHostName(), now);
+    }
+
+    private static <K> boolean isValid(Map<K, Long> map, K key, long now) {
+        Long expiration = map.get(key);
+        if (expiration == null)
+            return false;
+        if (expiration > now)
+            return true;
+        map.remove(key, expiration);
+        return false;
+    }
+
+    private void makeRoom() {
+        if (size() < maximumSize)
+            return;
+        long now = CoarseClock.currentTimeMillis();
+        nameErrors.values().removeIf(expiration -> expiration <= now);
+        noData.values().removeIf(expiration -> expiration <= now);
+
+        // Drop arbitrary entries, up to a tenth of the bound, to make room for new ones
+        int excess = size() - maximumSize + Math.max(1, maximumSize / 10);
+        excess = dropEntries(nameErrors, excess);
+        dropEntries(noData, excess);
+    }
+
+    private static int dropEntries(Map<?, Long> map, int count) {
+        Iterator<?> iterator = map.keySet().iterator();
+        while (count > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            count--;
+        }
+        return count;
+    }
+
+    private static String key(String hostName) {
+        String key = hostName.toLowerCase(Locale.ROOT);
+        return key.endsWith(".") ? key.substring(0, key.length() - 1) : key;
+    }
+}
@@ -0,0 +1,120 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Encodes DNS query messages. The complete wire format of a query (header, QNAME, QTYPE and
+ * QCLASS) is built once per DNSNode and cached; sending a query for the same node again only
+ * copies that template into a reusable per-thread buffer and patches the transaction ID. The
+ * QNAME is the host name of the node in its canonical wire format (see DNSNode.getKey).
+ *
+ * Unless disabled, queries include an EDNS0 OPT record (RFC 6891) advertising the UDP payload
+ * size this resolver can receive, so servers can send responses larger than 512 bytes instead
+ * of truncating them.
+ */
+class QueryEncoder {
+
+    static final int MAX_MESSAGE_LENGTH = 512;
+    // Avoids IP fragmentation on common paths (DNS Flag Day 2020)
+    static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+
+    private static final int MAX_CACHED_TEMPLATES = 10000;
+
+    private final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_MESSAGE_LENGTH));
+
+    // Replaced as a whole when the payload size changes, so a template built with the old size
+    // can only be added to the map being discarded
+    private volatile Templates templates = new Templates(DEFAULT_EDNS_PAYLOAD_SIZE);
+
+    /** Changes the UDP payload size advertised in queries.
+     *
+     * @param payloadSize Payload size, between 512 and 65535 bytes, or 0 to send queries without
+     *                    an OPT record.
+     */
+    void setEdnsPayloadSize(int payloadSize) {
+        if (payloadSize != 0 && (payloadSize < MAX_MESSAGE_LENGTH || payloadSize > 0xFFFF))
+            throw new IllegalArgumentException("Invalid EDNS payload size: " + payloadSize);
+        templates = new Templates(payloadSize);
+    }
+
+    int getEdnsPayloadSize() {
+        return templates.ednsPayloadSize;
+    }
+
+    /** Encodes a query for a node. The returned buffer is owned by the calling thread, and is
+     * overwritten by the next call to this method on the same thread.
+     *
+     * @param node Host name and record type to be used for the query.
+     * @param id   Transaction ID of the query.
+     * @return A buffer positioned at the start of the encoded query, limited to its length.
+     */
+    ByteBuffer encode(DNSNode node, int id) {
+        Templates current = templates;
+        byte[] template = current.byNode.get(node);
+        if (template == null) {
+            if (current.byNode.size() >= MAX_CACHED_TEMPLATES)
+                current.byNode.clear();
+            template = buildTemplate(node, current.ednsPayloadSize);
+            current.byNode.put(node, template);
+        }
+
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer.put(template);
+        buffer.putShort(0, (short) id);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] buildTemplate(DNSNode node, int ednsPayloadSize) {
+        byte[] name = node.getKey();
+        if (name == null)
+            throw new IllegalArgumentException("Invalid host name: " + node.getHostName());
+        ByteBuffer out = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+
+        // Transaction ID (patched for each query)
+        out.putShort((short) 0);
+        // Flags
+        out.putShort((short) 0x0000);
+        // # Questions
+        out.putShort((short) 0x0001);
+        // # Answers, # Authorities (Should be 0 since we're querying)
+        out.putShort((short) 0x0000);
+        out.putShort((short) 0x0000);
+        // # Additionals (the OPT record, if any)
+        out.putShort((short) (ednsPayloadSize > 0 ? 0x0001 : 0x0000));
+
+        // Labels of the host name, ending with the root label
+        out.put(name);
+        // Query type
+        out.putShort((short) node.getType().getCode());
+        // Class 0x01 = IN
+        out.putShort((short) 0x0001);
+
+        if (ednsPayloadSize > 0) {
+            // OPT record: root name, payload size as class, no extended flags or options
+            out.put((byte) 0x00);
+            out.putShort((short) DNSMessageReader.TYPE_OPT);
+            out.putShort((short) ednsPayloadSize);
+            out.putInt(0);
+            out.putShort((short) 0);
+        }
+
+        byte[] template = new byte[out.position()];
+        out.flip();
+        out.get(template);
+        return template;
+    }
+
+    /** Templates of queries, all built with the same EDNS payload size. */
+    private static class Templates {
+        final int ednsPayloadSize;
+        final ConcurrentMap<DNSNode, byte[]> byNode = new ConcurrentHashMap<>();
+
+        Templates(int ednsPayloadSize) {
+            this.ednsPayloadSize = ednsPayloadSize;
+        }
+    }
+}
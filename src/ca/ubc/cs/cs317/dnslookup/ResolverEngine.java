@@ -0,0 +1,263 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Non-blocking engine that sends DNS queries over UDP and multiplexes their responses. All I/O
+ * is performed by a single event loop thread on a DatagramChannel registered with a Selector,
+ * so any number of queries, to any number of servers, can be outstanding at the same time.
+ *
+ * Each query gets a transaction ID that is unique among outstanding queries. A response is only
+ * accepted if its ID matches an outstanding query, it comes from the server that query was sent
+ * to, and its question section matches the query. Anything else (late responses to abandoned
+ * queries, stray or spoofed packets) is dropped. Queries that are not answered in time are
+ * retransmitted with the same ID, doubling the timeout each time, until their retries are
+ * exhausted. Deadlines and round-trip times are measured with the monotonic clock (see
+ * CoarseClock.preciseTimeMillis), so they are not skewed when the system clock is adjusted.
+ */
+class ResolverEngine implements Closeable {
+
+    private static final int RECEIVE_BUFFER_SIZE = 65535;
+    // Leaves enough free IDs for random allocation to find one quickly
+    private static final int MAX_OUTSTANDING = 0xC000;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread eventLoop;
+
+    private final QueryEncoder encoder;
+
+    private final ConcurrentMap<Integer, DNSQuery> outstanding = new ConcurrentHashMap<>();
+    private final Queue<DNSQuery> submissions = new ConcurrentLinkedQueue<>();
+    // Only accessed by the event loop thread
+    private final PriorityQueue<DNSQuery> timeouts =
+            new PriorityQueue<>(Comparator.comparingLong(DNSQuery::getDeadline));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final DNSMessageReader reader = new DNSMessageReader();
+
+    private final LongAdder retransmissionCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+
+    private volatile boolean running = true;
+
+    ResolverEngine(QueryEncoder encoder) throws IOException {
+        this.encoder = encoder;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(null);
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+
+        this.eventLoop = new Thread(this::run, "dns-resolver-engine");
+        this.eventLoop.setDaemon(true);
+        this.eventLoop.start();
+    }
+
+    /** Sends a query for a node to a server. The query is retransmitted (with the same ID) if no
+     * response is received within the timeout, up to the specified number of retries. The timeout
+     * doubles with each retransmission.
+     *
+     * @param node          Host name and record type to be used for the query.
+     * @param address       Address of the server to be used for the query.
+     * @param port          Port the query should be sent to.
+     * @param timeoutMillis Time to wait for a response to each transmission.
+     * @param retries       Number of retransmissions after the first transmission.
+     * @return The query, which completes with the response message, or exceptionally with an
+     * IllegalArgumentException if the host name of the node cannot be encoded.
+     */
+    DNSQuery query(DNSNode node, InetAddress address, int port, long timeoutMillis, int retries) {
+        InetSocketAddress server = new InetSocketAddress(address, port);
+        if (node.getKey() == null) {
+            DNSQuery rejected = new DNSQuery(-1, node, server, timeoutMillis, retries);
+            rejected.completeExceptionally(new IllegalArgumentException("Invalid host name: " + node.getHostName()));
+            return rejected;
+        }
+        if (outstanding.size() >= MAX_OUTSTANDING) {
+            DNSQuery rejected = new DNSQuery(-1, node, server, timeoutMillis, retries);
+            rejected.completeExceptionally(new IOException("Too many outstanding queries"));
+            return rejected;
+        }
+        DNSQuery candidate;
+        do {
+            candidate = new DNSQuery(ThreadLocalRandom.current().nextInt(0x10000), node, server, timeoutMillis, retries);
+        } while (outstanding.putIfAbsent(candidate.getId(), candidate) != null);
+
+        DNSQuery query = candidate;
+        query.whenComplete((response, error) -> outstanding.remove(query.getId(), query));
+        submissions.add(query);
+        selector.wakeup();
+        return query;
+    }
+
+    /** Number of queries that have been submitted but not completed yet.
+     *
+     * @return Number of outstanding queries.
+     */
+    int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /** Number of retransmissions of queries that were not answered in time.
+     *
+     * @return Number of retransmissions.
+     */
+    long getRetransmissionCount() {
+        return retransmissionCount.sum();
+    }
+
+    /** Number of queries that failed because no response was received after all retries.
+     *
+     * @return Number of queries that timed out.
+     */
+    long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /** Number of I/O errors of the event loop that did not concern a single query (such as a
+     * failure to select or receive). Outstanding queries are not failed by these errors; they
+     * are retransmitted or time out as usual.
+     *
+     * @return Number of event loop errors.
+     */
+    long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        channel.close();
+        for (DNSQuery query : outstanding.values())
+            query.completeExceptionally(new IOException("Resolver engine closed"));
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                DNSQuery query;
+                while ((query = submissions.poll()) != null)
+                    transmit(query);
+
+                long waitMillis = expireTimeouts();
+                selector.select(waitMillis);
+                if (!selector.selectedKeys().isEmpty()) {
+                    selector.selectedKeys().clear();
+                    receiveAll();
+                }
+            } catch (IOException e) {
+                if (running)
+                    errorCount.increment();
+            }
+        }
+    }
+
+    private void transmit(DNSQuery query) throws IOException {
+        if (query.isDone())
+            return;
+        try {
+            ByteBuffer message = encoder.encode(query.getNode(), query.getId());
+            channel.send(message, query.getServer());
+        } catch (IOException | RuntimeException e) {
+            // Only this query fails: the event loop must keep serving the others
+            query.completeExceptionally(e);
+            return;
+        }
+        query.sent(CoarseClock.preciseTimeMillis());
+        timeouts.add(query);
+    }
+
+    /** Retransmits or fails the queries whose deadline passed.
+     *
+     * @return Time to wait until the next deadline, or 0 to wait indefinitely.
+     */
+    private long expireTimeouts() throws IOException {
+        long now = CoarseClock.preciseTimeMillis();
+        DNSQuery query;
+        while ((query = timeouts.peek()) != null && (query.isDone() || query.getDeadline() <= now)) {
+            timeouts.poll();
+            if (query.isDone())
+                continue;
+            if (query.getRemainingRetries() > 0) {
+                query.consumeRetry(MAX_BACKOFF_MILLIS);
+                retransmissionCount.increment();
+                transmit(query);
+            } else {
+                timeoutCount.increment();
+                query.completeExceptionally(new SocketTimeoutException(
+                        "No response from " + query.getServer() + " for " + query.getNode()));
+            }
+        }
+        return query == null ? 0 : Math.max(1, query.getDeadline() - now);
+    }
+
+    private void receiveAll() throws IOException {
+        SocketAddress source;
+        receiveBuffer.clear();
+        while ((source = channel.receive(receiveBuffer)) != null) {
+            receiveBuffer.flip();
+            DNSQuery query = match(source, receiveBuffer);
+            if (query != null) {
+                byte[] response = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(response);
+                query.received(CoarseClock.preciseTimeMillis());
+                query.complete(response);
+            }
+            receiveBuffer.clear();
+        }
+    }
+
+    /** Finds the outstanding query a response answers.
+     *
+     * @param source   Address the response was received from.
+     * @param response Buffer containing the response.
+     * @return The matching query, or null if the response does not match any outstanding query.
+     */
+    private DNSQuery match(SocketAddress source, ByteBuffer response) {
+        try {
+            reader.reset(response);
+            DNSQuery query = outstanding.get(reader.getId());
+            if (query == null || !query.getServer().equals(source))
+                return null;
+            // Must be a response (QR bit) with exactly the question that was asked
+            if ((reader.getFlags() & 0x8000) == 0 || reader.getCount(DNSMessageReader.SECTION_QUESTION) != 1)
+                return null;
+            if (!reader.next() || !sameQuestion(query))
+                return null;
+            return query;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private boolean sameQuestion(DNSQuery query) throws IOException {
+        DNSNode node = query.getNode();
+        if (reader.getType() != node.getType().getCode() || reader.getRecordClass() != 1)
+            return false;
+        return reader.nameEquals(reader.getNameOffset(), node.getKey());
+    }
+}
@@ -0,0 +1,99 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and latency histograms of the resolver, updated along the lookup path. Latencies
+ * are recorded in microseconds. Each lookup (see DNSLookupService.resolve) records its total
+ * latency, and each exchange with upstream servers (a query, including retransmissions, racing
+ * and a TCP retry, until a usable response is received) records its own latency. The referral
+ * depth of a resolution is the number of referrals followed before an answer was obtained.
+ */
+class ResolverMetrics {
+
+    private final Histogram lookupLatency = new Histogram();
+    private final Histogram exchangeLatency = new Histogram();
+    private final Histogram referralDepth = new Histogram();
+
+    private final LongAdder lookupCount = new LongAdder();
+    private final LongAdder emptyLookupCount = new LongAdder();
+    private final LongAdder exchangeCount = new LongAdder();
+    private final LongAdder failedExchangeCount = new LongAdder();
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder tcpFallbackCount = new LongAdder();
+    private final LongAdder cnameHopCount = new LongAdder();
+
+    /** Records a complete lookup.
+     *
+     * @param nanos   Time taken by the lookup, in nanoseconds.
+     * @param results Number of results found.
+     */
+    void recordLookup(long nanos, int results) {
+        lookupLatency.record(nanos / 1000);
+        lookupCount.increment();
+        if (results == 0)
+            emptyLookupCount.increment();
+    }
+
+    /** Records an exchange with upstream servers.
+     *
+     * @param nanos     Time between sending the first query and receiving the response (or
+     *                  giving up), in nanoseconds.
+     * @param succeeded true if a usable response was received.
+     */
+    void recordExchange(long nanos, boolean succeeded) {
+        exchangeCount.increment();
+        if (succeeded)
+            exchangeLatency.record(nanos / 1000);
+        else
+            failedExchangeCount.increment();
+    }
+
+    /** Records a query sent to a server over UDP (not counting retransmissions).
+     */
+    void recordQuerySent() {
+        queriesSent.increment();
+    }
+
+    /** Records a truncated response followed by a query over TCP.
+     */
+    void recordTcpFallback() {
+        tcpFallbackCount.increment();
+    }
+
+    void recordCNameHop() {
+        cnameHopCount.increment();
+    }
+
+    /** Records the number of referrals followed by a resolution that obtained an answer.
+     */
+    void recordReferralDepth(int depth) {
+        referralDepth.record(depth);
+    }
+
+    /** Adds the current value of each counter and statistic to a map, under a stable name.
+     *
+     * @param stats Map the values are added to.
+     */
+    void collect(Map<String, Number> stats) {
+        stats.put("lookups", lookupCount.sum());
+        stats.put("lookupsWithoutResults", emptyLookupCount.sum());
+        collect(stats, "lookupLatencyMicros", lookupLatency);
+        stats.put("exchanges", exchangeCount.sum());
+        stats.put("failedExchanges", failedExchangeCount.sum());
+        collect(stats, "exchangeLatencyMicros", exchangeLatency);
+        stats.put("queriesSent", queriesSent.sum());
+        stats.put("tcpFallbacks", tcpFallbackCount.sum());
+        stats.put("cnameHops", cnameHopCount.sum());
+        stats.put("referralDepth.mean", referralDepth.getMean());
+        stats.put("referralDepth.max", referralDepth.getMax());
+    }
+
+    private static void collect(Map<String, Number> stats, String name, Histogram histogram) {
+        stats.put(name + ".mean", histogram.getMean());
+        stats.put(name + ".p50", histogram.getValueAtPercentile(0.5));
+        stats.put(name + ".p99", histogram.getValueAtPercentile(0.99));
+        stats.put(name + ".p999", histogram.getValueAtPercentile(0.999));
+        stats.put(name + ".max", histogram.getMax());
+    }
+}
@@ -2,23 +2,26 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
+ * and is represented by an expiration time calculated as a delta from the current time. Times
+ * are taken from CoarseClock, so checking if a record is still valid does not allocate or query
+ * the operating system.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private long lifetime;
     private String textResult;
     private InetAddress inetResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.lifetime = ttl * 1000;
+        this.expirationTime = CoarseClock.currentTimeMillis() + lifetime;
         this.textResult = result;
         this.inetResult = null;
     }
@@ -28,6 +31,23 @@ public class ResourceRecord implements Serializable {
         this.inetResult = result;
     }
 
+    /** Creates a record with an absolute expiration time, e.g., when restoring a snapshot of the
+     * cache.
+     *
+     * @param node           Host name and type of the record.
+     * @param expirationTime Time at which the record expires, as returned by CoarseClock.
+     * @param lifetime       TTL the record was originally created with, in milliseconds.
+     * @param textResult     Textual result of the record.
+     * @param inetResult     Address result of the record, or null if it has none.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, long lifetime, String textResult, InetAddress inetResult) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.lifetime = lifetime;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -41,7 +61,7 @@ public class ResourceRecord implements Serializable {
     }
 
     public void print() {
-        System.out.println("Host: " + node.getHostName() + " Type: " + node.getType() + " Result: " + textResult + "\n");
+        System.out.println("Host: " + node.getHostName() + " Type: " + node.getType() + " Result: " + getTextResult() + "\n");
     }
 
     /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
@@ -52,7 +72,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - CoarseClock.currentTimeMillis() + 999) / 1000;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -62,7 +82,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > CoarseClock.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -74,7 +94,35 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** The time at which this record expires.
+     *
+     * @return Expiration time, in milliseconds since the epoch (as returned by CoarseClock).
+     */
+    long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** The TTL this record was created with, i.e., the time between its creation and its
+     * expiration.
+     *
+     * @return Lifetime of this record, in milliseconds.
+     */
+    long getLifetime() {
+        return lifetime;
+    }
+
+    /** Returns a copy of this record with a new TTL, counted from the current time.
+     *
+     * @param ttl TTL of the new record, in seconds.
+     * @return A record with the same host name, type and result as this one.
+     */
+    ResourceRecord withTTL(long ttl) {
+        ResourceRecord record = new ResourceRecord(node.getHostName(), node.getType(), ttl, getTextResult());
+        record.inetResult = getInetResult();
+        return record;
     }
 
     public String getTextResult() {
@@ -88,19 +136,21 @@ public class ResourceRecord implements Serializable {
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        // Records viewed from the cache's packed storage (see CachedRecord) equal the originals
+        if (!(o instanceof ResourceRecord)) return false;
 
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (!getTextResult().equals(record.getTextResult())) return false;
+        InetAddress inet = getInetResult();
+        return inet != null ? inet.equals(record.getInetResult()) : record.getInetResult() == null;
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + getTextResult().hashCode();
         return result;
     }
 }
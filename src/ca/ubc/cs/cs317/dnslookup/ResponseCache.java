@@ -0,0 +1,273 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Cache of encoded responses used by the server mode (see DNSServer), so that answering a
+ * popular query does not require looking up its records and encoding them again. Responses are
+ * kept per question (host name and record type) and per EDNS0 payload size of the client (0 for
+ * clients not using EDNS0), since the payload size decides whether a response includes an OPT
+ * record and where it is truncated.
+ *
+ * A cached response is copied as is, except for the fields that differ from one query to the
+ * next: the transaction ID, the RD flag, the question name (whose case is that of the query) and
+ * the TTL of each record, which is decremented by the time elapsed since the response was
+ * encoded.
+ *
+ * Responses are only kept for answers that are still those of the DNS cache, and are removed
+ * whenever the records of their question change there (see DNSCache.setChangeListener). They are
+ * only used until the prefetch window of their records starts (see
+ * DNSCache.setPrefetchThreshold), so that popular records are still read from the DNS cache, and
+ * refreshed, before they expire. Since reads answered from a cached response do not reach the
+ * DNS cache, one in TOUCH_INTERVAL of them is reported to its eviction policy (see
+ * DNSCache.touch), so popular questions are not evicted as if they were unused.
+ *
+ * Once responses are kept for the maximum number of questions, responses to new questions
+ * replace those of other questions, chosen by an eviction policy of their own (see CachePolicy).
+ * Reads are reported to that policy at the same rate as to the DNS cache, which is enough to
+ * tell popular questions apart without updating the policy on every read.
+ */
+class ResponseCache {
+
+    static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private static final int FLAG_RD = 0x0100;
+    private static final int TOUCH_INTERVAL = 16;
+
+    private final DNSCache cache;
+    private final CachePolicy policy;
+    private final ConcurrentMap<DNSNode, Response[]> responses = new ConcurrentHashMap<>();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /** Creates an empty response cache. The cache does not listen to changes of the DNS cache
+     * by itself: invalidate must be registered as its change listener.
+     *
+     * @param cache       DNS cache the records of the responses are read from.
+     * @param maximumSize Maximum number of questions whose responses are kept.
+     */
+    ResponseCache(DNSCache cache, int maximumSize) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("Invalid response cache size: " + maximumSize);
+        this.cache = cache;
+        this.policy = new CachePolicy(maximumSize);
+    }
+
+    /** Writes the cached response to a query, if there is one that can still be used.
+     *
+     * @param out             Buffer the response is written to, starting at its position.
+     * @param query           Query being answered, whose question name starts right after the
+     *                        header.
+     * @param nameEnd         Offset of the end of the question name in the query.
+     * @param id              Transaction ID of the query.
+     * @param queryFlags      Flags of the query.
+     * @param question        Question of the query.
+     * @param ednsPayloadSize Payload size advertised by the client, or 0 if it does not use
+     *                        EDNS0.
+     * @return true if the response was written, false if it must be encoded from records.
+     */
+    boolean write(ByteBuffer out, ByteBuffer query, int nameEnd, int id, int queryFlags, DNSNode question,
+                  int ednsPayloadSize) {
+        Response response = find(question, ednsPayloadSize);
+        long now = CoarseClock.currentTimeMillis();
+        byte[] key = question.getKey();
+        if (response == null || key == null || nameEnd - DNSMessageReader.HEADER_LENGTH != key.length
+                || response.message.length > out.remaining()) {
+            missCount.increment();
+            return false;
+        }
+        if (now >= response.usableUntil) {
+            invalidate(question, response);
+            missCount.increment();
+            return false;
+        }
+
+        int start = out.position();
+        out.put(response.message);
+        out.putShort(start, (short) id);
+        out.putShort(start + 2, (short) ((response.flags & ~FLAG_RD) | (queryFlags & FLAG_RD)));
+        out.put(start + DNSMessageReader.HEADER_LENGTH, query, DNSMessageReader.HEADER_LENGTH, key.length);
+        int elapsed = (int) ((now - response.created) / 1000);
+        for (int i = 0; i < response.ttlOffsets.length; i++)
+            out.putInt(start + response.ttlOffsets[i], Math.max(response.ttls[i] - elapsed, 0));
+        hitCount.increment();
+
+        // Counted without synchronization, as lost updates only delay the next report
+        int hits = response.hits;
+        response.hits = hits + 1;
+        if (hits % TOUCH_INTERVAL == 0) {
+            policy.onAccess(question);
+            cache.touch(question);
+        }
+        return true;
+    }
+
+    /** Keeps a copy of a response to be used for later queries with the same question and
+     * payload size, if its answers are still those cached for the question. The response is
+     * used until its first record enters the prefetch window (see DNSCache.getPrefetchTime).
+     *
+     * @param question        Question of the query the response answers.
+     * @param ednsPayloadSize Payload size advertised by the client, or 0 if it does not use
+     *                        EDNS0.
+     * @param message         Buffer holding the encoded response between its position and its
+     *                        limit.
+     * @param answers         Records the answer section was encoded from, as returned by
+     *                        DNSCache.getCachedResults.
+     */
+    void put(DNSNode question, int ednsPayloadSize, ByteBuffer message, Set<ResourceRecord> answers) {
+        long usableUntil = cache.getPrefetchTime(question, answers);
+        if (usableUntil <= CoarseClock.currentTimeMillis())
+            return;
+        Response response;
+        try {
+            response = Response.of(ednsPayloadSize, message, usableUntil);
+        } catch (IOException e) {
+            return;
+        }
+        if (response == null)
+            return;
+        boolean[] inserted = new boolean[1];
+        responses.compute(question, (n, old) -> {
+            if (old == null) {
+                inserted[0] = true;
+                policy.onInsert(n);
+                return new Response[]{response};
+            }
+            for (int i = 0; i < old.length; i++) {
+                if (old[i].payloadSize == ednsPayloadSize) {
+                    Response[] replaced = old.clone();
+                    replaced[i] = response;
+                    return replaced;
+                }
+            }
+            Response[] extended = Arrays.copyOf(old, old.length + 1);
+            extended[old.length] = response;
+            return extended;
+        });
+        if (inserted[0])
+            evictExcess();
+        // The answers may have changed before the response was added, and so before the change
+        // listener could remove it
+        if (!cache.isCurrent(question, answers))
+            invalidate(question);
+    }
+
+    /** Removes the responses to a question, for all payload sizes.
+     *
+     * @param question Question whose responses should be removed.
+     */
+    void invalidate(DNSNode question) {
+        responses.computeIfPresent(question, (n, old) -> {
+            policy.onRemove(n);
+            return null;
+        });
+    }
+
+    int size() {
+        return responses.size();
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    private Response find(DNSNode question, int ednsPayloadSize) {
+        Response[] candidates = responses.get(question);
+        if (candidates == null)
+            return null;
+        for (Response response : candidates)
+            if (response.payloadSize == ednsPayloadSize)
+                return response;
+        return null;
+    }
+
+    /** Removes a single response that can no longer be used, unless it was replaced already. */
+    private void invalidate(DNSNode question, Response response) {
+        responses.computeIfPresent(question, (n, old) -> {
+            int index = Arrays.asList(old).indexOf(response);
+            if (index < 0)
+                return old;
+            if (old.length == 1) {
+                policy.onRemove(n);
+                return null;
+            }
+            Response[] remaining = new Response[old.length - 1];
+            System.arraycopy(old, 0, remaining, 0, index);
+            System.arraycopy(old, index + 1, remaining, index, remaining.length - index);
+            return remaining;
+        });
+    }
+
+    private void evictExcess() {
+        DNSNode victim;
+        while ((victim = policy.nextVictim()) != null) {
+            responses.computeIfPresent(victim, (n, old) -> {
+                // The question may have been removed and added again since it was picked
+                policy.onRemove(n);
+                return null;
+            });
+        }
+    }
+
+    /** Encoded response, along with the offsets and original values of the TTLs of its records. */
+    private static class Response {
+
+        final int payloadSize;
+        final byte[] message;
+        final int flags;
+        final int[] ttlOffsets;
+        final int[] ttls;
+        final long created;
+        final long usableUntil;
+        int hits;
+
+        private Response(int payloadSize, byte[] message, int[] ttlOffsets, int[] ttls, long created,
+                         long usableUntil) {
+            this.payloadSize = payloadSize;
+            this.message = message;
+            this.flags = ((message[2] & 0xFF) << 8) | (message[3] & 0xFF);
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.created = created;
+            this.usableUntil = usableUntil;
+        }
+
+        /** Copies an encoded response and finds the TTLs of its answer and authority records.
+         *
+         * @return The response, or null if it holds no record to be patched.
+         */
+        static Response of(int payloadSize, ByteBuffer message, long usableUntil) throws IOException {
+            byte[] copy = new byte[message.remaining()];
+            message.duplicate().get(copy);
+
+            DNSMessageReader reader = new DNSMessageReader();
+            reader.reset(ByteBuffer.wrap(copy));
+            int count = reader.getCount(DNSMessageReader.SECTION_ANSWER)
+                    + reader.getCount(DNSMessageReader.SECTION_AUTHORITY);
+            if (count == 0)
+                return null;
+            int[] ttlOffsets = new int[count];
+            int[] ttls = new int[count];
+            int records = 0;
+            while (reader.next()) {
+                int section = reader.getSection();
+                if (section != DNSMessageReader.SECTION_ANSWER && section != DNSMessageReader.SECTION_AUTHORITY)
+                    continue;
+                // The TTL is followed by the length of the record data
+                ttlOffsets[records] = reader.getRDataOffset() - 6;
+                ttls[records] = (int) reader.getTTL();
+                records++;
+            }
+            return new Response(payloadSize, copy, ttlOffsets, ttls, CoarseClock.currentTimeMillis(), usableUntil);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/** Encodes DNS response messages sent by the server mode (see DNSServer). A response holds the
+ * question it answers, followed by answer records and authority records. Names equal to the
+ * question name are compressed into a pointer to the question; other names are written in full.
+ * Names are written in the wire format of DNSNode.getKey, in lower case.
+ *
+ * Only records whose data can be encoded from a ResourceRecord are included: A and AAAA records
+ * (from their address), NS and CNAME records (from their target name) and SOA records (from
+ * their presentation form). Records that do not fit in the maximum length of the message are
+ * left out, and the message is then marked as truncated. Responses to clients using EDNS0 end
+ * with an OPT record advertising the payload size of the server.
+ */
+class ResponseEncoder {
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_FORMERR = 1;
+    static final int RCODE_SERVFAIL = 2;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int RCODE_NOTIMP = 4;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_RA = 0x0080;
+    private static final int OPCODE_MASK = 0x7800;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int QUESTION_POINTER = 0xC000 | HEADER_LENGTH;
+    private static final int CLASS_IN = 1;
+    private static final int OPT_RECORD_LENGTH = 11;
+
+    private ResponseEncoder() {
+    }
+
+    /** Returns true if a record can be included in a response, i.e., if its data can be encoded.
+     *
+     * @param type Type of the record.
+     * @return true if records of this type can be encoded.
+     */
+    static boolean isSupported(RecordType type) {
+        switch (type) {
+            case A:
+            case AAAA:
+            case NS:
+            case CNAME:
+            case SOA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Encodes a response without a question, e.g., to report a malformed query.
+     *
+     * @param out        Buffer the response is written to, starting at its position.
+     * @param id         Transaction ID of the query being answered.
+     * @param queryFlags Flags of the query being answered.
+     * @param rcode      Response code.
+     */
+    static void encodeError(ByteBuffer out, int id, int queryFlags, int rcode) {
+        writeHeader(out, id, responseFlags(queryFlags, rcode), 0, 0, 0);
+    }
+
+    /** Encodes a response to a query.
+     *
+     * @param out         Buffer the response is written to, starting at its position. The
+     *                    response is not written past the buffer's limit.
+     * @param id          Transaction ID of the query being answered.
+     * @param queryFlags  Flags of the query being answered.
+     * @param rcode       Response code.
+     * @param question    Question of the query.
+     * @param answers     Records to be included in the answer section.
+     * @param authorities Records to be included in the authority section.
+     * @param ednsPayloadSize Payload size advertised in an OPT record, or 0 if the response
+     *                    should not include one.
+     * @throws IllegalArgumentException If the question name is not a valid host name.
+     */
+    static void encode(ByteBuffer out, int id, int queryFlags, int rcode, DNSNode question,
+                       Collection<ResourceRecord> answers, Collection<ResourceRecord> authorities,
+                       int ednsPayloadSize) {
+        int start = out.position();
+        int limit = out.limit();
+        if (ednsPayloadSize > 0)
+            out.limit(limit - OPT_RECORD_LENGTH);
+        writeHeader(out, id, responseFlags(queryFlags, rcode), 1, 0, 0);
+        writeName(out, question.getKey(), question.getHostName());
+        out.putShort((short) question.getType().getCode());
+        out.putShort((short) CLASS_IN);
+
+        int answerCount = 0;
+        int authorityCount = 0;
+        try {
+            for (ResourceRecord record : answers)
+                if (writeRecord(out, question, record, false))
+                    answerCount++;
+            for (ResourceRecord record : authorities)
+                if (writeRecord(out, question, record, true))
+                    authorityCount++;
+        } catch (BufferOverflowException e) {
+            out.putShort(start + 2, (short) (out.getShort(start + 2) | FLAG_TC));
+        }
+        out.putShort(start + 6, (short) answerCount);
+        out.putShort(start + 8, (short) authorityCount);
+
+        out.limit(limit);
+        if (ednsPayloadSize > 0) {
+            out.put((byte) 0);
+            out.putShort((short) DNSMessageReader.TYPE_OPT);
+            out.putShort((short) ednsPayloadSize);
+            out.putInt(0);
+            out.putShort((short) 0);
+            out.putShort(start + 10, (short) 1);
+        }
+    }
+
+    private static int responseFlags(int queryFlags, int rcode) {
+        return FLAG_QR | (queryFlags & (OPCODE_MASK | FLAG_RD)) | FLAG_RA | rcode;
+    }
+
+    private static void writeHeader(ByteBuffer out, int id, int flags, int questions, int answers,
+                                    int authorities) {
+        out.putShort((short) id);
+        out.putShort((short) flags);
+        out.putShort((short) questions);
+        out.putShort((short) answers);
+        out.putShort((short) authorities);
+        out.putShort((short) 0);
+    }
+
+    /** Writes a single record. If the record does not fit, the buffer is left as it was before
+     * the call.
+     *
+     * @return true if the record was written, false if its data could not be encoded.
+     * @throws BufferOverflowException If the record does not fit in the buffer.
+     */
+    private static boolean writeRecord(ByteBuffer out, DNSNode question, ResourceRecord record,
+                                       boolean authority) {
+        int recordStart = out.position();
+        try {
+            if (writeRecordData(out, question, record, authority))
+                return true;
+        } catch (IllegalArgumentException e) {
+            // Invalid name or SOA field: leave the record out
+        } catch (BufferOverflowException e) {
+            out.position(recordStart);
+            throw e;
+        }
+        out.position(recordStart);
+        return false;
+    }
+
+    private static boolean writeRecordData(ByteBuffer out, DNSNode question, ResourceRecord record,
+                                           boolean authority) {
+        if (DNSNode.sameName(record.getHostName(), question.getHostName()))
+            out.putShort((short) QUESTION_POINTER);
+        else
+            writeName(out, record.getNode().getKey(), record.getHostName());
+        out.putShort((short) record.getType().getCode());
+        out.putShort((short) CLASS_IN);
+        int ttlOffset = out.position();
+        out.putInt((int) Math.max(record.getTTL(), 0));
+        int lengthOffset = out.position();
+        out.putShort((short) 0);
+
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                InetAddress address = record.getInetResult();
+                if (address == null || address.getAddress().length != (record.getType() == RecordType.A ? 4 : 16))
+                    return false;
+                out.put(address.getAddress());
+                break;
+            case NS:
+            case CNAME:
+                writeName(out, record.getTextResult());
+                break;
+            case SOA:
+                String[] fields = record.getTextResult().trim().split("\\s+");
+                if (fields.length != 7)
+                    return false;
+                writeName(out, fields[0]);
+                writeName(out, fields[1]);
+                for (int i = 2; i < 7; i++)
+                    out.putInt((int) Long.parseLong(fields[i]));
+                // Negative answers are cached downstream for the SOA MINIMUM at most (RFC 2308)
+                if (authority)
+                    out.putInt(ttlOffset, (int) Math.min(record.getTTL(), Long.parseLong(fields[6])));
+                break;
+            default:
+                return false;
+        }
+        out.putShort(lengthOffset, (short) (out.position() - lengthOffset - 2));
+        return true;
+    }
+
+    private static void writeName(ByteBuffer out, String name) {
+        writeName(out, DNSNode.toKey(name), name);
+    }
+
+    /** Writes a name in wire format.
+     *
+     * @param key  Name in wire format, or null if it could not be encoded.
+     * @param name Name, as reported if it could not be encoded.
+     */
+    private static void writeName(ByteBuffer out, byte[] key, String name) {
+        if (key == null)
+            throw new IllegalArgumentException("Invalid host name: " + name);
+        out.put(key);
+    }
+}
@@ -0,0 +1,207 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/** Table of statistics for each name server the resolver has queried. For each server, a
+ * smoothed round-trip time and its variance are maintained (as in TCP, RFC 6298), along with the
+ * number of consecutive failures. These are used to rank the servers of a delegation (fastest
+ * first) and to compute the retransmission timeout of each query.
+ *
+ * Timeouts penalize a server by doubling its smoothed RTT. To make sure a penalized (or simply
+ * slower) server is eventually tried again, the RTT used for ranking decays exponentially with
+ * the time since the server was last measured, as done by BIND. Servers that were never measured
+ * are ranked with a small random RTT, so they are tried early.
+ */
+class ServerStats {
+
+    private static final long INITIAL_TIMEOUT_MILLIS = 1000;
+    private static final long MIN_TIMEOUT_MILLIS = 100;
+    private static final long MAX_TIMEOUT_MILLIS = 5000;
+    private static final long MAX_RTT_MILLIS = 30000;
+    private static final long UNKNOWN_RTT_MILLIS = 32;
+    private static final long MIN_STAGGER_MILLIS = 20;
+    private static final long UNKNOWN_STAGGER_MILLIS = 200;
+    private static final double DECAY_HALF_LIFE_MILLIS = 60000;
+
+    private final Map<InetAddress, Server> servers = new ConcurrentHashMap<>();
+
+    /** Records a response received from a server.
+     *
+     * @param address Address of the server.
+     * @param rtt     Time between the (single) transmission of the query and the response.
+     */
+    void recordResponse(InetAddress address, long rtt) {
+        Server server = servers.computeIfAbsent(address, a -> new Server());
+        synchronized (server) {
+            if (server.samples == 0) {
+                server.srtt = rtt;
+                server.rttvar = rtt / 2.0;
+            } else {
+                server.rttvar = 0.75 * server.rttvar + 0.25 * Math.abs(server.srtt - rtt);
+                server.srtt = 0.875 * server.srtt + 0.125 * rtt;
+            }
+            server.samples++;
+            server.responses++;
+            server.failures = 0;
+            server.lastUpdate = CoarseClock.currentTimeMillis();
+        }
+    }
+
+    /** Records that a query to a server was abandoned after some time, because another server
+     * answered first. The server is only known to be slower than that, so its RTT is raised if
+     * it was estimated to be lower.
+     *
+     * @param address Address of the server.
+     * @param elapsed Time between the transmission of the query and its cancellation.
+     */
+    void recordAbandoned(InetAddress address, long elapsed) {
+        Server server = servers.computeIfAbsent(address, a -> new Server());
+        synchronized (server) {
+            if (server.samples == 0 || server.srtt < elapsed) {
+                server.srtt = server.samples == 0 ? elapsed : 0.875 * server.srtt + 0.125 * elapsed;
+                server.rttvar = Math.max(server.rttvar, elapsed / 2.0);
+                server.samples++;
+                server.lastUpdate = CoarseClock.currentTimeMillis();
+            }
+        }
+    }
+
+    /** Records that a query to a server failed (it timed out, or the server answered with an
+     * error), doubling its smoothed RTT.
+     *
+     * @param address Address of the server.
+     */
+    void recordFailure(InetAddress address) {
+        Server server = servers.computeIfAbsent(address, a -> new Server());
+        synchronized (server) {
+            double base = server.samples == 0 ? INITIAL_TIMEOUT_MILLIS : Math.max(server.srtt, MIN_TIMEOUT_MILLIS);
+            server.srtt = Math.min(MAX_RTT_MILLIS, 2 * base);
+            server.samples++;
+            server.failures++;
+            server.lastUpdate = CoarseClock.currentTimeMillis();
+        }
+    }
+
+    /** Computes the time to wait for a response from a server before retransmitting a query,
+     * as the smoothed RTT plus four times its variance (bounded).
+     *
+     * @param address Address of the server.
+     * @return Retransmission timeout in milliseconds.
+     */
+    long getTimeout(InetAddress address) {
+        Server server = servers.get(address);
+        if (server == null)
+            return INITIAL_TIMEOUT_MILLIS;
+        synchronized (server) {
+            if (server.samples == 0)
+                return INITIAL_TIMEOUT_MILLIS;
+            long rto = (long) (server.srtt + 4 * server.rttvar);
+            return Math.min(MAX_TIMEOUT_MILLIS, Math.max(MIN_TIMEOUT_MILLIS, rto));
+        }
+    }
+
+    /** Computes how long to wait for a response from a server before also querying another
+     * server of the same delegation: twice the smoothed RTT, bounded by the retransmission
+     * timeout.
+     *
+     * @param address Address of the server.
+     * @return Stagger delay in milliseconds.
+     */
+    long getStaggerDelay(InetAddress address) {
+        Server server = servers.get(address);
+        if (server == null)
+            return UNKNOWN_STAGGER_MILLIS;
+        long srtt;
+        synchronized (server) {
+            if (server.samples == 0)
+                return UNKNOWN_STAGGER_MILLIS;
+            srtt = (long) server.srtt;
+        }
+        return Math.min(getTimeout(address), Math.max(MIN_STAGGER_MILLIS, 2 * srtt));
+    }
+
+    /** Returns the RTT used to rank a server: its smoothed RTT, decayed with the time since it
+     * was last measured.
+     *
+     * @param address Address of the server.
+     * @return Ranking RTT in milliseconds (lower is better).
+     */
+    double getRankingRtt(InetAddress address) {
+        Server server = servers.get(address);
+        if (server == null)
+            return ThreadLocalRandom.current().nextDouble(UNKNOWN_RTT_MILLIS);
+        synchronized (server) {
+            long elapsed = CoarseClock.currentTimeMillis() - server.lastUpdate;
+            return server.srtt * Math.pow(0.5, elapsed / DECAY_HALF_LIFE_MILLIS);
+        }
+    }
+
+    /** Sorts a list of server addresses from best to worst ranked.
+     *
+     * @param addresses Addresses of the servers to be ranked.
+     * @return A new list with the same addresses, best ranked first.
+     */
+    List<InetAddress> rank(List<InetAddress> addresses) {
+        List<InetAddress> ranked = new ArrayList<>(addresses);
+        Map<InetAddress, Double> rtts = new HashMap<>();
+        for (InetAddress address : addresses)
+            rtts.put(address, getRankingRtt(address));
+        ranked.sort(Comparator.comparingDouble(rtts::get));
+        return ranked;
+    }
+
+    /** Perform an action for each server with recorded statistics.
+     *
+     * @param consumer Action to be performed with each server's address and a summary of its
+     *                 statistics.
+     */
+    void forEachServer(BiConsumer<InetAddress, Summary> consumer) {
+        servers.forEach((address, server) -> {
+            Summary summary;
+            synchronized (server) {
+                summary = new Summary(server.srtt, server.rttvar, server.responses, server.failures);
+            }
+            consumer.accept(address, summary);
+        });
+    }
+
+    /** Statistics of a server at a point in time.
+     */
+    static class Summary {
+        final double srtt;
+        final double rttvar;
+        final long responses;
+        final long failures;
+
+        Summary(double srtt, double rttvar, long responses, long failures) {
+            this.srtt = srtt;
+            this.rttvar = rttvar;
+            this.responses = responses;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("srtt=%.1fms rttvar=%.1fms responses=%d consecutiveFailures=%d",
+                    srtt, rttvar, responses, failures);
+        }
+    }
+
+    private static class Server {
+        double srtt;
+        double rttvar;
+        long samples;
+        long responses;
+        // Failures since the last response
+        long failures;
+        long lastUpdate;
+    }
+}
@@ -0,0 +1,106 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/** Coalesces concurrent computations for the same key. The first caller for a key (the leader)
+ * runs the computation, while callers arriving before it completes wait for, and share, the
+ * leader's result instead of running their own.
+ *
+ * A computation that requests its own key again on the same thread runs directly, as it could
+ * otherwise wait for itself. Waiting for another thread's computation is bounded, so that two
+ * computations depending on each other cannot wait forever; a caller that gives up runs the
+ * computation itself.
+ *
+ * @param <K> Type of the keys identifying computations.
+ * @param <V> Type of the results of computations.
+ */
+class SingleFlight<K, V> {
+
+    private final long maxWaitMillis;
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final ThreadLocal<Set<K>> leading = ThreadLocal.withInitial(HashSet::new);
+
+    private final LongAdder leaderCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    SingleFlight(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /** Returns the result of a computation for a key, either by running it or by waiting for an
+     * identical computation already running on another thread.
+     *
+     * @param key         Key identifying the computation.
+     * @param computation Computation to run if none is running for the key.
+     * @return The result of the computation.
+     */
+    V execute(K key, Supplier<V> computation) {
+        Set<K> led = leading.get();
+        if (led.contains(key))
+            return computation.get();
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedCount.increment();
+            try {
+                return existing.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // The leader failed or is taking too long: compute independently
+                return computation.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return computation.get();
+            }
+        }
+
+        leaderCount.increment();
+        led.add(key);
+        try {
+            V result = computation.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            led.remove(key);
+            inFlight.remove(key, future);
+        }
+    }
+
+    /** Number of computations that were actually run by a leader.
+     *
+     * @return Number of computations run.
+     */
+    long getLeaderCount() {
+        return leaderCount.sum();
+    }
+
+    /** Number of callers that waited for another caller's computation instead of running their
+     * own.
+     *
+     * @return Number of coalesced calls.
+     */
+    long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /** Number of computations currently running.
+     *
+     * @return Number of keys in flight.
+     */
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+}
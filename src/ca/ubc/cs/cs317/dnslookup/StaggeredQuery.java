@@ -0,0 +1,131 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** Races a query across a ranked list of servers. The query is first sent to the best ranked
+ * server only; if no usable response arrives within the stagger delay of that server (see
+ * ServerStats), it is also sent to the next server, and so on. A server that fails (times out,
+ * or answers with SERVFAIL, NOTIMP or REFUSED) causes the next server to be tried immediately.
+ * The first usable response wins, and all other queries of the race are cancelled.
+ *
+ * The race completes with the winning query (whose own result is the response message), or
+ * exceptionally with the last failure if no server provided a usable response. The outcome of
+ * each query (response time, failure, or abandonment) is recorded in the server statistics.
+ */
+class StaggeredQuery extends CompletableFuture<DNSQuery> {
+
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NOTIMP = 4;
+    private static final int RCODE_REFUSED = 5;
+
+    private final ResolverEngine engine;
+    private final DNSNode node;
+    private final List<InetAddress> servers;
+    private final int port;
+    private final ServerStats stats;
+    private final int retries;
+    private final Consumer<DNSQuery> onSend;
+
+    private final List<DNSQuery> launched = new ArrayList<>();
+    private int failures = 0;
+
+    /** Creates a race. The race is not started until start() is invoked.
+     *
+     * @param engine        Engine used to send queries.
+     * @param node          Host name and record type to be used for the query.
+     * @param servers       Servers to query, best ranked first.
+     * @param port          Port queries should be sent to.
+     * @param stats         Statistics used for timeouts and stagger delays, and updated with
+     *                      the outcome of each query.
+     * @param retries       Number of retransmissions of each query.
+     * @param onSend        Action performed for each query sent (e.g., tracing).
+     */
+    StaggeredQuery(ResolverEngine engine, DNSNode node, List<InetAddress> servers, int port,
+                   ServerStats stats, int retries, Consumer<DNSQuery> onSend) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("No server to query");
+        this.engine = engine;
+        this.node = node;
+        this.servers = servers;
+        this.port = port;
+        this.stats = stats;
+        this.retries = retries;
+        this.onSend = onSend;
+    }
+
+    StaggeredQuery start() {
+        launch(0);
+        return this;
+    }
+
+    /** Sends the query to the server at a specific index of the list, unless the race is over or
+     * that server was already queried (or is not the next one to be queried).
+     */
+    private void launch(int index) {
+        DNSQuery query;
+        InetAddress server;
+        synchronized (this) {
+            if (isDone() || index != launched.size() || index >= servers.size())
+                return;
+            server = servers.get(index);
+            query = engine.query(node, server, port, stats.getTimeout(server), retries);
+            launched.add(query);
+        }
+        onSend.accept(query);
+        query.whenComplete((response, error) -> {
+            if (query.isCancelled()) {
+                stats.recordAbandoned(server, CoarseClock.preciseTimeMillis() - query.getSentAt());
+            } else if (error instanceof IllegalArgumentException) {
+                // The query itself is invalid: no server is at fault, and none would accept it
+                completeExceptionally(error);
+            } else if (error == null && isUsable(response)) {
+                if (!query.isRetransmitted())
+                    stats.recordResponse(server, query.getRtt());
+                if (complete(query))
+                    cancelOthers(query);
+            } else {
+                stats.recordFailure(server);
+                failed(error != null ? error : new IOException(
+                        "Server failure response from " + query.getServer() + " for " + node));
+            }
+        });
+        if (index + 1 < servers.size())
+            CompletableFuture.delayedExecutor(stats.getStaggerDelay(server), TimeUnit.MILLISECONDS)
+                    .execute(() -> launch(index + 1));
+    }
+
+    private void failed(Throwable error) {
+        boolean exhausted;
+        int next;
+        synchronized (this) {
+            failures++;
+            exhausted = failures == servers.size();
+            next = launched.size();
+        }
+        if (exhausted)
+            completeExceptionally(error);
+        else
+            launch(next);
+    }
+
+    private void cancelOthers(DNSQuery winner) {
+        List<DNSQuery> others;
+        synchronized (this) {
+            others = new ArrayList<>(launched);
+        }
+        for (DNSQuery query : others)
+            if (query != winner)
+                query.cancel(false);
+    }
+
+    private static boolean isUsable(byte[] response) {
+        int rcode = response.length > 3 ? response[3] & 0x0F : RCODE_SERVFAIL;
+        return rcode != RCODE_SERVFAIL && rcode != RCODE_NOTIMP && rcode != RCODE_REFUSED;
+    }
+}
@@ -0,0 +1,216 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Sends DNS queries over TCP (RFC 7766), used when a UDP response is truncated. Messages are
+ * sent with a two-byte length prefix.
+ *
+ * A single connection is kept per server and reused for later queries to that server. Queries
+ * are pipelined: a query is written as soon as it is submitted, without waiting for responses
+ * to earlier queries, and responses (which may arrive in any order) are matched to queries by
+ * their transaction ID. Each connection has a reader running on a virtual thread. A connection
+ * with no outstanding query is closed after being idle for a while, and a connection that fails
+ * fails all of its outstanding queries; the next query to the server opens a new one.
+ */
+class TcpTransport implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final int IDLE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_OUTSTANDING = 0xC000;
+
+    private final QueryEncoder encoder;
+    private final ConcurrentMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final LongAdder queryCount = new LongAdder();
+
+    TcpTransport(QueryEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /** Sends a query for a node to a server over TCP.
+     *
+     * @param node          Host name and record type to be used for the query.
+     * @param server        Address and port of the server.
+     * @param timeoutMillis Time to wait for the response.
+     * @return A future completed with the response message, or exceptionally if the connection
+     * fails or no response is received in time (with a TimeoutException).
+     */
+    CompletableFuture<byte[]> query(DNSNode node, InetSocketAddress server, long timeoutMillis) {
+        while (true) {
+            Connection connection = connections.get(server);
+            if (connection == null) {
+                // Connect outside of the map, so other servers are not held up meanwhile
+                try {
+                    connection = new Connection(server);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+                Connection existing = connections.putIfAbsent(server, connection);
+                if (existing != null) {
+                    connection.close(new IOException("Duplicate connection"));
+                    connection = existing;
+                }
+            }
+
+            CompletableFuture<byte[]> response = connection.send(node, timeoutMillis);
+            if (response != null) {
+                queryCount.increment();
+                return response;
+            }
+            // The connection was closed in the meantime: retry with a new one
+            connections.remove(server, connection);
+        }
+    }
+
+    /** Number of connections currently open.
+     *
+     * @return Number of open connections.
+     */
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    /** Number of queries sent over TCP.
+     *
+     * @return Number of queries sent.
+     */
+    long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : connections.values())
+            connection.close(new IOException("TCP transport closed"));
+    }
+
+    private class Connection {
+
+        private final InetSocketAddress server;
+        private final Socket socket;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final ConcurrentMap<Integer, CompletableFuture<byte[]>> outstanding = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        Connection(InetSocketAddress server) throws IOException {
+            this.server = server;
+            this.socket = new Socket();
+            try {
+                socket.connect(server, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread.ofVirtual().name("dns-tcp-" + server).start(this::readResponses);
+        }
+
+        /** Writes a query on this connection.
+         *
+         * @return A future completed with the response, or null if the connection is closed.
+         */
+        CompletableFuture<byte[]> send(DNSNode node, long timeoutMillis) {
+            CompletableFuture<byte[]> response = new CompletableFuture<>();
+            int id;
+            do {
+                if (outstanding.size() >= MAX_OUTSTANDING)
+                    return CompletableFuture.failedFuture(new IOException("Too many outstanding TCP queries"));
+                id = ThreadLocalRandom.current().nextInt(0x10000);
+            } while (outstanding.putIfAbsent(id, response) != null);
+            final int queryId = id;
+            response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .whenComplete((message, error) -> outstanding.remove(queryId, response));
+
+            writeLock.lock();
+            try {
+                if (closed) {
+                    outstanding.remove(queryId, response);
+                    return null;
+                }
+                ByteBuffer query = encoder.encode(node, queryId);
+                byte[] frame = new byte[2 + query.remaining()];
+                frame[0] = (byte) (query.remaining() >> 8);
+                frame[1] = (byte) query.remaining();
+                query.get(frame, 2, query.remaining());
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+            } finally {
+                writeLock.unlock();
+            }
+            return response;
+        }
+
+        private void readResponses() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (SocketTimeoutException e) {
+                        if (outstanding.isEmpty() && closeIfIdle())
+                            return;
+                        continue;
+                    }
+                    byte[] message = new byte[length];
+                    in.readFully(message);
+                    if (length < DNSMessageReader.HEADER_LENGTH)
+                        continue;
+                    int id = ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+                    CompletableFuture<byte[]> response = outstanding.remove(id);
+                    if (response != null)
+                        response.complete(message);
+                }
+            } catch (EOFException e) {
+                close(new IOException("Connection closed by " + server));
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        /** Closes this connection if no query was written since the last check. */
+        private boolean closeIfIdle() {
+            writeLock.lock();
+            try {
+                if (!outstanding.isEmpty())
+                    return false;
+                close(new IOException("Idle connection closed"));
+                return true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            connections.remove(server, this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with this connection
+            }
+            for (CompletableFuture<byte[]> response : outstanding.values())
+                response.completeExceptionally(cause);
+            outstanding.clear();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Records traces of sampled lookups (see LookupTrace) and keeps the most recent ones in a
+ * fixed-size ring buffer. Completed traces are published to the buffer without locking,
+ * overwriting the oldest ones.
+ *
+ * The trace of the lookup running on a thread is kept in a thread-local variable, so the code
+ * along the lookup path can add events to it without passing it around. When tracing is off,
+ * finding that there is no current trace costs a single volatile read.
+ */
+class TraceRecorder {
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final AtomicReferenceArray<LookupTrace> traces;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final ThreadLocal<LookupTrace> current = new ThreadLocal<>();
+
+    private volatile int sampleInterval = 0;
+
+    TraceRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TraceRecorder(int capacity) {
+        this.traces = new AtomicReferenceArray<>(capacity);
+    }
+
+    /** Changes which lookups are traced.
+     *
+     * @param interval Trace one lookup out of this many, or 0 to turn tracing off.
+     */
+    void setSampleInterval(int interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("Invalid sample interval: " + interval);
+        sampleInterval = interval;
+    }
+
+    int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /** Starts tracing a lookup on the current thread, if it is sampled.
+     *
+     * @param node Host name and record type being looked up.
+     * @return The trace of the lookup, or null if the lookup is not traced.
+     */
+    LookupTrace start(DNSNode node) {
+        int interval = sampleInterval;
+        if (interval == 0 || (interval > 1 && lookups.getAndIncrement() % interval != 0))
+            return null;
+        LookupTrace trace = new LookupTrace(node);
+        current.set(trace);
+        return trace;
+    }
+
+    /** Completes the trace of a lookup and publishes it to the buffer.
+     *
+     * @param trace   Trace returned by start (may be null).
+     * @param results Number of results of the lookup.
+     */
+    void finish(LookupTrace trace, int results) {
+        if (trace == null)
+            return;
+        current.remove();
+        trace.finish(results);
+        long index = published.getAndIncrement();
+        traces.set((int) (index % traces.length()), trace);
+    }
+
+    /** Returns the trace of the lookup running on the current thread.
+     *
+     * @return The current trace, or null if the lookup is not traced.
+     */
+    LookupTrace current() {
+        return sampleInterval == 0 ? null : current.get();
+    }
+
+    /** Makes a trace the current trace of the calling thread, e.g., for work done on behalf of a
+     * traced lookup by another thread.
+     *
+     * @param trace Trace to be attached, or null to detach the current trace.
+     */
+    void attach(LookupTrace trace) {
+        if (trace == null)
+            current.remove();
+        else
+            current.set(trace);
+    }
+
+    /** Returns the most recently completed traces, oldest first.
+     *
+     * @param count Maximum number of traces to return.
+     * @return The traces still in the buffer, at most count of them.
+     */
+    List<LookupTrace> recent(int count) {
+        long end = published.get();
+        long start = Math.max(0, end - Math.min(count, traces.length()));
+        List<LookupTrace> recent = new ArrayList<>();
+        for (long i = start; i < end; i++) {
+            LookupTrace trace = traces.get((int) (i % traces.length()));
+            if (trace != null)
+                recent.add(trace);
+        }
+        return recent;
+    }
+}